@@ -3,7 +3,11 @@ package com.automattic.android.tracks;
 import android.Manifest;
 import android.annotation.SuppressLint;
 import android.bluetooth.BluetoothAdapter;
+import android.content.BroadcastReceiver;
+import android.content.ComponentCallbacks;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
@@ -11,8 +15,13 @@ import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.res.Configuration;
 import android.graphics.Point;
 import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
 import android.net.NetworkInfo;
+import android.net.NetworkRequest;
 import android.os.Build;
+import android.os.SystemClock;
+import android.os.Trace;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
 import android.util.DisplayMetrics;
@@ -28,6 +37,8 @@ import org.json.JSONObject;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Some of the code below is from Mixpanel's SystemInformation class, but it's heavily modified to
@@ -46,26 +57,64 @@ import java.util.Locale;
 
     private static final int DISPLAY_SIZE_LARGE_THRESHOLD = 7;
 
+    // The mutable info is rebuilt when the system reports a change to it, or after this delay for the changes
+    // that are not reported, like the network operator
+    static final long MUTABLE_DEVICE_INFO_TTL_MS = 30 * 1000;
+
     private final Context mContext;
 
-    // Unchanging facts
-    private final Boolean mHasNFC;
-    private final Boolean mHasTelephony;
-    private final DisplayMetrics mDisplayMetrics;
-    private final String mAppName;
-    private final String mAppVersionName;
-    private final Integer mAppVersionCode;
-    private final Locale mLocale;
-    private final String mDeviceLanguage;
+    // Unchanging facts, read from the system by initialize() on first use
+    private volatile boolean mIsInitialized = false;
+    private boolean mIsReleased = false;
+    private Boolean mHasNFC;
+    private Boolean mHasTelephony;
+    private DisplayMetrics mDisplayMetrics;
+    private String mAppName;
+    private String mAppVersionName;
+    private Integer mAppVersionCode;
+    private Locale mLocale;
+    private String mDeviceLanguage;
     private int mWidthPixels;
     private int mHeightPixels;
 
-    private final JSONObject mImmutableDeviceInfoJSON;
-    private final boolean mIsPortraitDefault;
+    private JSONObject mImmutableDeviceInfoJSON;
+    private boolean mIsPortraitDefault;
+
+    // Incremented each time the system reports a change of the mutable info
+    private final AtomicInteger mMutableDeviceInfoGeneration = new AtomicInteger();
+    private final AtomicLong mMutableDeviceInfoRebuildCount = new AtomicLong();
+    private volatile MutableDeviceInfo mMutableDeviceInfo;
 
+    private BroadcastReceiver mBluetoothStateReceiver;
+    private ComponentCallbacks mConfigurationCallbacks;
+    private ConnectivityManager.NetworkCallback mNetworkCallback;
+
+    /**
+     * Returns immediately: the device is queried on the first call to any other method, which is usually made
+     * on the events pipeline thread. This keeps the PackageManager and WindowManager calls off app startup.
+     */
     public DeviceInformation(Context context) {
         mContext = context;
+    }
+
+    /* package */ void ensureInitialized() {
+        if (mIsInitialized) {
+            return;
+        }
+        synchronized (this) {
+            if (!mIsInitialized) {
+                Trace.beginSection("Tracks:DeviceInformation.initialize");
+                try {
+                    initialize();
+                } finally {
+                    Trace.endSection();
+                }
+                mIsInitialized = true;
+            }
+        }
+    }
 
+    private void initialize() {
         final String mOs = "Android";
         final String mOSVersion = Build.VERSION.RELEASE == null ? "UNKNOWN" : Build.VERSION.RELEASE;
         final String mManufacturer = Build.MANUFACTURER == null ? "UNKNOWN" : Build.MANUFACTURER;
@@ -152,25 +201,25 @@ import java.util.Locale;
             mImmutableDeviceInfoJSON.put("manufacturer", mManufacturer);
             mImmutableDeviceInfoJSON.put("brand", mBrand);
             mImmutableDeviceInfoJSON.put("model", mModel);
-            mImmutableDeviceInfoJSON.put("app_name", getAppName());
-            mImmutableDeviceInfoJSON.put("app_version", getAppVersionName());
-            mImmutableDeviceInfoJSON.put("app_version_code", Integer.toString(getAppVersionCode()));
-            mImmutableDeviceInfoJSON.put("language", getDeviceLanguage());
+            mImmutableDeviceInfoJSON.put("app_name", mAppName);
+            mImmutableDeviceInfoJSON.put("app_version", mAppVersionName);
+            mImmutableDeviceInfoJSON.put("app_version_code", Integer.toString(mAppVersionCode));
+            mImmutableDeviceInfoJSON.put("language", mDeviceLanguage);
         } catch (final JSONException e) {
             Log.e(LOGTAG, "Exception writing basic device info values in JSON object", e);
         }
         try {
-            mImmutableDeviceInfoJSON.put("has_NFC", hasNFC());
+            mImmutableDeviceInfoJSON.put("has_NFC", (boolean) mHasNFC);
         } catch (final JSONException e) {
             Log.e(LOGTAG, "Exception writing has_NFS value in JSON object", e);
         }
         try {
-            mImmutableDeviceInfoJSON.put("has_telephony", hasTelephony());
+            mImmutableDeviceInfoJSON.put("has_telephony", (boolean) mHasTelephony);
         } catch (final JSONException e) {
             Log.e(LOGTAG, "Exception writing has_telephony value in JSON object", e);
         }
         try {
-            int densityDpi = getDisplayMetrics().densityDpi;
+            int densityDpi = mDisplayMetrics.densityDpi;
             mImmutableDeviceInfoJSON.put("display_density_dpi", densityDpi);
             if (densityDpi > 0) {
                 double height = mHeightPixels / (double) densityDpi;
@@ -189,7 +238,7 @@ import java.util.Locale;
             // - fontScale: user preference for scaling factor. See: https://developer.android.com/reference/android/content/res/Configuration.html#fontScale
             // - scaledDensity: density * fontScale. See: http://androidxref.com/4.2_r1/xref/packages/apps/Settings/src/com/android/settings/Display.java#99
             double fontScale = mContext.getResources().getConfiguration().fontScale;
-            double scaledDensity = getDisplayMetrics().scaledDensity;
+            double scaledDensity = mDisplayMetrics.scaledDensity;
             mImmutableDeviceInfoJSON.put("font_scale", fontScale);
             mImmutableDeviceInfoJSON.put("scaled_density", scaledDensity);
         } catch (final JSONException e) {
@@ -232,14 +281,131 @@ import java.util.Locale;
             Log.e(LOGTAG, "Exception writing bluetooth info values in JSON object", e);
         }
         try {
-            mImmutableDeviceInfoJSON.put("is_rtl_language", isRtlLanguage());
+            mImmutableDeviceInfoJSON.put("is_rtl_language", isRtlLanguage(mLocale));
         } catch (final JSONException e) {
             Log.e(LOGTAG, "Exception writing is_rtl_language value in JSON object", e);
         }
+
+        if (!mIsReleased) {
+            registerChangeListeners();
+        }
     }
 
-    // Returns those system info that could change upon time.
+    /**
+     * Returns those system info that could change upon time.
+     *
+     * The same object is returned until one of them changes, and it is attached to the events as is:
+     * it must not be modified.
+     */
     public JSONObject getMutableDeviceInfo() {
+        ensureInitialized();
+        // Read before building, so that a change reported while building invalidates the result
+        int generation = mMutableDeviceInfoGeneration.get();
+        long now = SystemClock.elapsedRealtime();
+        MutableDeviceInfo cached = mMutableDeviceInfo;
+        if (cached != null && cached.mGeneration == generation && now - cached.mBuiltAt < MUTABLE_DEVICE_INFO_TTL_MS) {
+            return cached.mInfo;
+        }
+
+        JSONObject info = buildMutableDeviceInfo();
+        mMutableDeviceInfoRebuildCount.incrementAndGet();
+        mMutableDeviceInfo = new MutableDeviceInfo(info, generation, now);
+        return info;
+    }
+
+    // Number of times the mutable info was built, for the cache to be checked
+    public long getMutableDeviceInfoRebuildCount() {
+        return mMutableDeviceInfoRebuildCount.get();
+    }
+
+    /* package */ void invalidateMutableDeviceInfo() {
+        mMutableDeviceInfoGeneration.incrementAndGet();
+    }
+
+    /**
+     * Stops listening to the system changes. The mutable info is then only refreshed when its TTL expires.
+     */
+    public synchronized void release() {
+        mIsReleased = true;
+        Context appContext = mContext.getApplicationContext();
+        if (mBluetoothStateReceiver != null) {
+            appContext.unregisterReceiver(mBluetoothStateReceiver);
+            mBluetoothStateReceiver = null;
+        }
+        if (mConfigurationCallbacks != null) {
+            appContext.unregisterComponentCallbacks(mConfigurationCallbacks);
+            mConfigurationCallbacks = null;
+        }
+        if (mNetworkCallback != null) {
+            ConnectivityManager manager = (ConnectivityManager) appContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+            try {
+                if (manager != null) {
+                    manager.unregisterNetworkCallback(mNetworkCallback);
+                }
+            } catch (IllegalArgumentException e) {
+                Log.w(LOGTAG, "Network callback already unregistered");
+            }
+            mNetworkCallback = null;
+        }
+    }
+
+    // Listens to the changes of the network, the Bluetooth state and the orientation, which make the mutable info
+    // stale. Registered on the application context so that no activity is leaked.
+    private void registerChangeListeners() {
+        Context appContext = mContext.getApplicationContext();
+
+        mBluetoothStateReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                invalidateMutableDeviceInfo();
+            }
+        };
+        appContext.registerReceiver(mBluetoothStateReceiver, new IntentFilter(BluetoothAdapter.ACTION_STATE_CHANGED));
+
+        mConfigurationCallbacks = new ComponentCallbacks() {
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+                invalidateMutableDeviceInfo();
+            }
+
+            @Override
+            public void onLowMemory() {
+            }
+        };
+        appContext.registerComponentCallbacks(mConfigurationCallbacks);
+
+        if (PackageManager.PERMISSION_GRANTED
+                == appContext.checkCallingOrSelfPermission(Manifest.permission.ACCESS_NETWORK_STATE)) {
+            ConnectivityManager manager = (ConnectivityManager) appContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+            if (manager != null) {
+                ConnectivityManager.NetworkCallback networkCallback = new ConnectivityManager.NetworkCallback() {
+                    @Override
+                    public void onAvailable(Network network) {
+                        invalidateMutableDeviceInfo();
+                    }
+
+                    @Override
+                    public void onCapabilitiesChanged(Network network, NetworkCapabilities networkCapabilities) {
+                        invalidateMutableDeviceInfo();
+                    }
+
+                    @Override
+                    public void onLost(Network network) {
+                        invalidateMutableDeviceInfo();
+                    }
+                };
+                try {
+                    manager.registerNetworkCallback(new NetworkRequest.Builder().build(), networkCallback);
+                    mNetworkCallback = networkCallback;
+                } catch (RuntimeException e) {
+                    // Some devices throw a SecurityException, the TTL still refreshes the info
+                    Log.e(LOGTAG, "Cannot listen to the network changes", e);
+                }
+            }
+        }
+    }
+
+    private JSONObject buildMutableDeviceInfo() {
         JSONObject mutableDeviceInfo = new JSONObject();
         try {
             mutableDeviceInfo.put("bluetooth_enabled", isBluetoothEnabled());
@@ -288,20 +454,21 @@ import java.util.Locale;
     }
 
     public JSONObject getImmutableDeviceInfo() {
+        ensureInitialized();
         return mImmutableDeviceInfoJSON;
     }
 
-    public String getAppName() { return mAppName; }
+    public String getAppName() { ensureInitialized(); return mAppName; }
 
-    public String getAppVersionName() { return mAppVersionName; }
+    public String getAppVersionName() { ensureInitialized(); return mAppVersionName; }
 
-    public Integer getAppVersionCode() { return mAppVersionCode; }
+    public Integer getAppVersionCode() { ensureInitialized(); return mAppVersionCode; }
 
-    public boolean hasNFC() { return mHasNFC; }
+    public boolean hasNFC() { ensureInitialized(); return mHasNFC; }
 
-    public boolean hasTelephony() { return mHasTelephony; }
+    public boolean hasTelephony() { ensureInitialized(); return mHasTelephony; }
 
-    public DisplayMetrics getDisplayMetrics() { return mDisplayMetrics; }
+    public DisplayMetrics getDisplayMetrics() { ensureInitialized(); return mDisplayMetrics; }
 
     public String getPhoneRadioType() {
         String ret = null;
@@ -398,10 +565,28 @@ import java.util.Locale;
      * @return True if the default locale is Right-to-left, false otherwise.
      */
     public boolean isRtlLanguage() {
-        return TextUtils.getLayoutDirectionFromLocale(mLocale) == View.LAYOUT_DIRECTION_RTL;
+        ensureInitialized();
+        return isRtlLanguage(mLocale);
+    }
+
+    private static boolean isRtlLanguage(Locale locale) {
+        return TextUtils.getLayoutDirectionFromLocale(locale) == View.LAYOUT_DIRECTION_RTL;
     }
 
     public String getDeviceLanguage() {
+        ensureInitialized();
         return mDeviceLanguage;
     }
+
+    private static final class MutableDeviceInfo {
+        final JSONObject mInfo;
+        final int mGeneration;
+        final long mBuiltAt;
+
+        MutableDeviceInfo(JSONObject info, int generation, long builtAt) {
+            mInfo = info;
+            mGeneration = generation;
+            mBuiltAt = builtAt;
+        }
+    }
 }
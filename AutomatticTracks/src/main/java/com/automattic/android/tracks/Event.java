@@ -30,6 +30,10 @@ public class Event implements Serializable {
     private final TracksClient.NosaraUserType mUserType;
 
     private int mRetryCount = 0;
+    // Identifies the user agent and user properties of the client that tracked the event, so that events
+    // tracked with different ones are sent apart
+    private int mClientTag = 0;
+    private TracksClient.EventPriority mPriority = TracksClient.EventPriority.NORMAL;
 
     private JSONObject mUserProperties;
     private JSONObject mDeviceInfo;
@@ -111,6 +115,27 @@ public class Event implements Serializable {
         mRetryCount+= 1;
     }
 
+    public void setRetryCount(int retryCount) {
+        mRetryCount = retryCount;
+    }
+
+    public int getClientTag() {
+        return mClientTag;
+    }
+
+    public void setClientTag(int clientTag) {
+        mClientTag = clientTag;
+    }
+
+    public TracksClient.EventPriority getPriority() {
+        return mPriority;
+    }
+
+    public void setPriority(TracksClient.EventPriority priority) {
+        // A null priority would fail the insert of all the events written with this one
+        mPriority = priority != null ? priority : TracksClient.EventPriority.NORMAL;
+    }
+
     public void setUserProperties(JSONObject userProperties) {
         this.mUserProperties = userProperties;
     }
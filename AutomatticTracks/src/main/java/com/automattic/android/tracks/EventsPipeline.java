@@ -0,0 +1,874 @@
+package com.automattic.android.tracks;
+
+import android.annotation.SuppressLint;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.automattic.android.tracks.datasets.EventTable;
+import com.automattic.android.tracks.datasets.EventsBatch;
+import com.automattic.android.tracks.datasets.TracksDatabaseHelper;
+
+import org.json.JSONObject;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Moves tracked events from memory to the DB, and from the DB to the Tracks REST endpoint.
+ *
+ * The work is split in three stages:
+ * - ingest: writes the events of the in-memory input queue to the DB.
+ * - dispatch: reads the events from the DB and builds the network requests.
+ * - upload: sends the requests to the server, and deletes the events from the DB once they are acknowledged.
+ *
+ * All the pipelines of the process share the same small scheduler, so no thread is created per client or per call.
+ */
+/* package */ class EventsPipeline implements PipelineStage.OnIdleListener {
+    private static final int SCHEDULER_POOL_SIZE = 2;
+    private static final long SCHEDULER_KEEP_ALIVE_MS = 30 * 1000;
+    private static final long INGEST_BLOCK_PARK_NS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final int MIGRATION_CHUNK_ROWS = 500;
+
+    private static final ScheduledThreadPoolExecutor sScheduler = createScheduler();
+
+    // The pipeline shared by all the clients of the process, and the number of clients using it.
+    // It only holds the application context, which lives as long as the process anyway.
+    @SuppressLint("StaticFieldLeak")
+    private static EventsPipeline sSharedPipeline;
+    private static int sSharedPipelineUsersCount = 0;
+
+    // Database monitor
+    private final static Object mDbLock = new Object();
+
+    private final Context mContext;
+    private final DeviceInformation mDeviceInformation;
+    private final String mTracksRestEndpointURL;
+    private final UploadTransport mTransport;
+
+    // This is the main queue of events we need to lazy-write to the database.
+    // It's lock-free so that track() never contends with the ingest stage.
+    private final MpscRingBuffer<Event> mInsertEventsQueue;
+    // High priority events have their own lane, so that a burst of other events never pushes them out
+    private final MpscRingBuffer<Event> mHighPriorityEventsQueue =
+            new MpscRingBuffer<>(TracksClient.DEFAULT_HIGH_PRIORITY_INGEST_QUEUE_CAPACITY);
+    private volatile TracksClient.IngestOverflowPolicy mOverflowPolicy = TracksClient.IngestOverflowPolicy.DROP_OLDEST;
+    private volatile long mOverflowTimeoutMs = TracksClient.DEFAULT_INGEST_BLOCK_TIMEOUT_MS;
+    private final AtomicLong mDroppedEventsCount = new AtomicLong();
+
+    // This is the queue of events we're sending on the wire
+    private final ConcurrentLinkedQueue<NetworkRequestObject> mNetworkQueue = new ConcurrentLinkedQueue<>();
+
+    private final PipelineStage mIngestStage;
+    private final PipelineStage mDispatchStage;
+    private final PipelineStage mUploadStage;
+
+    private final Object mIdleLock = new Object();
+
+    private volatile boolean mIsStarted = false;
+    private volatile boolean mIsShutdown = false;
+    private volatile boolean mPendingFlush = false;
+    // Set when the app goes to the background: the dispatch stage then flushes, if any event is pending
+    private volatile boolean mPendingBackgroundFlush = false;
+    // Whether the dispatch stage should keep reading pages until the table is empty
+    private boolean mIsDraining = false;
+    // Window of requests built ahead of the upload stage. The dispatch stage pauses while it's full.
+    private volatile int mMaxInFlightRequests = TracksClient.DEFAULT_MAX_IN_FLIGHT_REQUESTS;
+    private final AtomicInteger mInFlightRequestsCount = new AtomicInteger();
+    private final AtomicLong mInFlightEventsBytes = new AtomicLong();
+    // Delays the next upload after a network or server error
+    private final UploadBackoff mUploadBackoff = new UploadBackoff(TracksClient.DEFAULT_BACKOFF_BASE_DELAY_MS,
+            TracksClient.DEFAULT_BACKOFF_MAX_DELAY_MS);
+    private final AtomicLong mDiscardedEventsCount = new AtomicLong();
+    private final AtomicLong mEvictedEventsCount = new AtomicLong();
+    private final AtomicLong mExpiredEventsCount = new AtomicLong();
+    private volatile boolean mIsGzipEnabled = true;
+
+    // Ensures events are sent to the server when the app is left opened with no actions, and keeps data fresh.
+    // It's only armed while events are waiting to be sent, so an idle device is never woken up.
+    private ScheduledFuture<?> mWakeup;
+    private long mWakeupAtMs;
+
+    // Migrates the rows left in a previous format by a DB upgrade, one chunk per run, so the stages run in between
+    private volatile boolean mIsMigratingRows = false;
+    private final Runnable mMigrateRowsRunnable = new Runnable() {
+        @Override
+        public void run() {
+            boolean hasMoreRows = false;
+            try {
+                synchronized (mDbLock) {
+                    hasMoreRows = !mIsShutdown && TracksDatabaseHelper.migrateRows(mContext, MIGRATION_CHUNK_ROWS) > 0;
+                }
+            } catch (RuntimeException e) {
+                // The rows left are still read as they are
+                Log.e(TracksClient.LOGTAG, "Unexpected error while migrating the events stored in the DB", e);
+            } finally {
+                if (hasMoreRows) {
+                    sScheduler.execute(this);
+                } else {
+                    mIsMigratingRows = false;
+                    notifyIdle();
+                }
+            }
+        }
+    };
+
+    private final Runnable mEventsCountdownRunnable = new Runnable() {
+        @Override
+        public void run() {
+            requestFlush();
+        }
+    };
+
+    // The flush the callers of flush() are waiting for. Concurrent calls share the same one.
+    private final Object mFlushLock = new Object();
+    private FlushOperation mFlushOperation;
+    // Number of the last dispatch pass started. A flush is only completed by a pass started after it was requested.
+    private final AtomicLong mDispatchPassCount = new AtomicLong();
+
+    // Sends the pending events when the app goes to the background, as the process may be killed soon after
+    private final ComponentCallbacks2 mLifecycleCallbacks = new ComponentCallbacks2() {
+        @Override
+        public void onTrimMemory(int level) {
+            // Called on the main thread: the table is checked by the dispatch stage, which may have to open the DB
+            if (level == ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+                mPendingBackgroundFlush = true;
+                signal(mDispatchStage);
+            }
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+        }
+
+        @Override
+        public void onLowMemory() {
+        }
+    };
+
+    EventsPipeline(Context context, DeviceInformation deviceInformation, String tracksRestEndpointURL) {
+        this(context, deviceInformation, tracksRestEndpointURL, new OkHttpUploadTransport());
+    }
+
+    EventsPipeline(Context context, DeviceInformation deviceInformation, String tracksRestEndpointURL,
+                   UploadTransport transport) {
+        this(context, deviceInformation, tracksRestEndpointURL, transport, TracksClient.DEFAULT_INGEST_QUEUE_CAPACITY);
+    }
+
+    EventsPipeline(Context context, DeviceInformation deviceInformation, String tracksRestEndpointURL,
+                   UploadTransport transport, int ingestQueueCapacity) {
+        // A shared pipeline outlives the component that created it
+        mContext = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+        mInsertEventsQueue = new MpscRingBuffer<>(ingestQueueCapacity);
+        mDeviceInformation = deviceInformation;
+        mTracksRestEndpointURL = tracksRestEndpointURL;
+        mTransport = transport;
+
+        mIngestStage = new PipelineStage("ingest", sScheduler, this) {
+            @Override
+            protected void process() {
+                ingest();
+            }
+        };
+        mDispatchStage = new PipelineStage("dispatch", sScheduler, this) {
+            @Override
+            protected void process() {
+                dispatch();
+            }
+        };
+        mUploadStage = new PipelineStage("upload", sScheduler, this) {
+            @Override
+            protected void process() {
+                upload();
+            }
+        };
+    }
+
+    private static ScheduledThreadPoolExecutor createScheduler() {
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(SCHEDULER_POOL_SIZE, new ThreadFactory() {
+            private final AtomicInteger mThreadCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "TracksPipeline-" + mThreadCount.incrementAndGet());
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        // Let the threads die when there is nothing to do
+        scheduler.setKeepAliveTime(SCHEDULER_KEEP_ALIVE_MS, TimeUnit.MILLISECONDS);
+        scheduler.allowCoreThreadTimeOut(true);
+        // A cancelled wakeup must not keep a thread waiting for it
+        scheduler.setRemoveOnCancelPolicy(true);
+        return scheduler;
+    }
+
+    /**
+     * Returns the started pipeline shared by all the clients of the process, creating it if needed.
+     * Each call must be balanced by a call to {@link #releaseShared}.
+     */
+    static synchronized EventsPipeline acquireShared(Context context, String tracksRestEndpointURL) {
+        if (sSharedPipeline == null) {
+            // The pipeline outlives the component that created the first client
+            Context appContext = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+            sSharedPipeline = new EventsPipeline(appContext, new DeviceInformation(appContext), tracksRestEndpointURL);
+            sSharedPipeline.start();
+        }
+        sSharedPipelineUsersCount++;
+        return sSharedPipeline;
+    }
+
+    /**
+     * Shuts the shared pipeline down once no client uses it anymore. The next client then starts a new one.
+     */
+    static synchronized void releaseShared(EventsPipeline pipeline) {
+        if (pipeline != sSharedPipeline || sSharedPipelineUsersCount == 0) {
+            return;
+        }
+        if (--sSharedPipelineUsersCount == 0) {
+            sSharedPipeline.shutdown();
+            sSharedPipeline = null;
+        }
+    }
+
+    /**
+     * Starts processing events. Events already stored in the DB are picked up by the first dispatch.
+     */
+    void start() {
+        if (mIsShutdown || mIsStarted) {
+            return;
+        }
+        mIsStarted = true;
+        mContext.registerComponentCallbacks(mLifecycleCallbacks);
+        mIsMigratingRows = true;
+        sScheduler.execute(mMigrateRowsRunnable);
+        mIngestStage.signal();
+        mDispatchStage.signal();
+    }
+
+    /**
+     * Stops scheduling any new work. Stages that are already running are allowed to complete, and
+     * events not yet written to the DB are dropped.
+     */
+    void shutdown() {
+        if (mIsStarted && !mIsShutdown) {
+            mContext.unregisterComponentCallbacks(mLifecycleCallbacks);
+        }
+        mIsShutdown = true;
+        cancelWakeup();
+        mHighPriorityEventsQueue.clear();
+        mInsertEventsQueue.clear();
+        dropQueuedRequests();
+        mDeviceInformation.release();
+        completeFlush();
+    }
+
+    boolean isShutdown() {
+        return mIsShutdown;
+    }
+
+    /**
+     * Blocks until every stage is idle and the in-memory queues are empty, or the timeout elapses.
+     *
+     * @return true if the pipeline is idle, false if the timeout elapsed first.
+     */
+    boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (mIdleLock) {
+            while (!isIdle()) {
+                long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remainingMs <= 0) {
+                    return false;
+                }
+                mIdleLock.wait(remainingMs);
+            }
+        }
+        return true;
+    }
+
+    private boolean isIdle() {
+        return !mIsMigratingRows && isIngestQueueEmpty() && mNetworkQueue.isEmpty()
+                && mIngestStage.isIdle() && mDispatchStage.isIdle() && mUploadStage.isIdle();
+    }
+
+    @Override
+    public void onStageIdle(PipelineStage stage) {
+        notifyIdle();
+    }
+
+    private void notifyIdle() {
+        synchronized (mIdleLock) {
+            mIdleLock.notifyAll();
+        }
+    }
+
+    void enqueue(Event event) {
+        if (mIsShutdown) {
+            Log.w(TracksClient.LOGTAG, "The events pipeline is shut down. Dropping event: " + event.getEventName());
+            return;
+        }
+        MpscRingBuffer<Event> queue = event.getPriority() == TracksClient.EventPriority.HIGH
+                ? mHighPriorityEventsQueue : mInsertEventsQueue;
+        switch (mOverflowPolicy) {
+            case DROP_NEWEST:
+                if (!queue.offer(event)) {
+                    onEventDropped(event);
+                }
+                break;
+            case BLOCK_WITH_TIMEOUT:
+                offerOrWait(queue, event);
+                break;
+            case DROP_OLDEST:
+            default:
+                while (!queue.offer(event)) {
+                    Event oldestEvent = queue.poll();
+                    if (oldestEvent != null) {
+                        onEventDropped(oldestEvent);
+                    }
+                }
+                break;
+        }
+        signal(mIngestStage);
+    }
+
+    private void offerOrWait(MpscRingBuffer<Event> queue, Event event) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(mOverflowTimeoutMs);
+        while (!queue.offer(event)) {
+            if (System.nanoTime() - deadline >= 0) {
+                onEventDropped(event);
+                return;
+            }
+            // Make sure the ingest stage is draining the queue while we wait for a free slot
+            signal(mIngestStage);
+            LockSupport.parkNanos(INGEST_BLOCK_PARK_NS);
+        }
+    }
+
+    private boolean isIngestQueueEmpty() {
+        return mHighPriorityEventsQueue.isEmpty() && mInsertEventsQueue.isEmpty();
+    }
+
+    private void onEventDropped(Event event) {
+        long droppedCount = mDroppedEventsCount.incrementAndGet();
+        Log.w(TracksClient.LOGTAG, "The input queue of events is full. Dropping event: " + event.getEventName()
+                + " (" + droppedCount + " dropped so far)");
+    }
+
+    void setOverflowPolicy(TracksClient.IngestOverflowPolicy policy, long timeoutMs) {
+        mOverflowPolicy = policy;
+        mOverflowTimeoutMs = timeoutMs;
+    }
+
+    long getDroppedEventsCount() {
+        return mDroppedEventsCount.get();
+    }
+
+    long getDiscardedEventsCount() {
+        return mDiscardedEventsCount.get();
+    }
+
+    long getEvictedEventsCount() {
+        return mEvictedEventsCount.get();
+    }
+
+    long getExpiredEventsCount() {
+        return mExpiredEventsCount.get();
+    }
+
+    long getDeviceInfoRebuildCount() {
+        return mDeviceInformation.getMutableDeviceInfoRebuildCount();
+    }
+
+    void setGzipEnabled(boolean isGzipEnabled) {
+        mIsGzipEnabled = isGzipEnabled;
+    }
+
+    boolean isGzipEnabled() {
+        return mIsGzipEnabled;
+    }
+
+    void setMaxInFlightRequests(int maxInFlightRequests) {
+        mMaxInFlightRequests = maxInFlightRequests;
+        // More requests may be built now
+        signal(mDispatchStage);
+    }
+
+    long getInFlightEventsBytes() {
+        return mInFlightEventsBytes.get();
+    }
+
+    /**
+     * Sends all the stored events, and the ones still in the input queue, to the Tracks backend.
+     *
+     * The returned future completes once no event is left, or when a batch fails to be sent. While the server
+     * asks to back off, it completes once the delay elapsed and the events could be sent: use a timeout.
+     * Calls made while a flush is in progress join it.
+     */
+    Future<FlushResult> flush() {
+        FlushOperation operation;
+        synchronized (mFlushLock) {
+            if (mFlushOperation == null) {
+                mFlushOperation = new FlushOperation();
+            }
+            operation = mFlushOperation;
+            // The passes already running may have looked for events before the ones tracked until now were queued
+            operation.mFirstCompletingPass = mDispatchPassCount.get() + 1;
+        }
+        if (mIsShutdown) {
+            completeFlush();
+        } else {
+            requestFlush();
+        }
+        return operation.getFuture();
+    }
+
+    // Force events to be sent to the Tracks backend, with nobody waiting for the outcome.
+    private void requestFlush() {
+        mPendingFlush = true;
+        // Write the queued events first: the dispatch stage runs again once they are stored
+        signal(mIngestStage);
+        signal(mDispatchStage);
+    }
+
+    private FlushOperation getFlushOperation() {
+        synchronized (mFlushLock) {
+            return mFlushOperation;
+        }
+    }
+
+    private void completeFlush() {
+        FlushOperation operation;
+        synchronized (mFlushLock) {
+            operation = mFlushOperation;
+            mFlushOperation = null;
+        }
+        if (operation != null) {
+            operation.complete();
+        }
+    }
+
+    // Completes the flush found done by the given dispatch pass, counting failedCount events as failed.
+    // Returns false if the flush was requested after the pass started: the next pass completes it then.
+    private boolean completeFlush(long dispatchPass, int failedCount) {
+        FlushOperation operation;
+        synchronized (mFlushLock) {
+            operation = mFlushOperation;
+            if (operation != null && operation.mFirstCompletingPass > dispatchPass) {
+                return false;
+            }
+            mFlushOperation = null;
+        }
+        if (operation != null) {
+            operation.addFailed(failedCount);
+            operation.complete();
+        }
+        return true;
+    }
+
+    // This removes all the events from the queues
+    void clear() {
+        mHighPriorityEventsQueue.clear();
+        mInsertEventsQueue.clear();
+        dropQueuedRequests();
+        sScheduler.execute(new Runnable() {
+            public void run() {
+                synchronized (mDbLock) {
+                    if (EventTable.hasEvents(mContext)) {
+                        EventTable.purgeAll(mContext);
+                    }
+                    mIsDraining = false;
+                }
+            }
+        });
+    }
+
+    // Arms the wakeup, unless one is already armed to fire no later than the requested delay.
+    // Tracking more events does not postpone it, so events are sent at most one timer period after they're stored.
+    private synchronized void scheduleWakeup(long delayMs) {
+        long wakeupAtMs = SystemClock.elapsedRealtime() + delayMs;
+        if (mWakeup != null && !mWakeup.isDone() && mWakeupAtMs <= wakeupAtMs) {
+            return;
+        }
+        cancelWakeup();
+        if (mIsShutdown) {
+            return;
+        }
+        mWakeupAtMs = wakeupAtMs;
+        mWakeup = sScheduler.schedule(mEventsCountdownRunnable, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void cancelWakeup() {
+        if (mWakeup != null) {
+            mWakeup.cancel(false);
+            mWakeup = null;
+        }
+    }
+
+    // Whether the wakeup is armed. Only meant for tests.
+    synchronized boolean isWakeupScheduled() {
+        return mWakeup != null && !mWakeup.isDone();
+    }
+
+    private void dropQueuedRequests() {
+        NetworkRequestObject request;
+        while ((request = mNetworkQueue.poll()) != null) {
+            onRequestDone(request);
+        }
+    }
+
+    // Gives the leases of the requests not sent yet back to the DB. Must be called holding mDbLock.
+    private void abandonQueuedRequests() {
+        FlushOperation flushOperation = getFlushOperation();
+        NetworkRequestObject request;
+        while ((request = mNetworkQueue.poll()) != null) {
+            EventTable.abandonEventsBatch(mContext, request.batch);
+            if (flushOperation != null) {
+                flushOperation.addFailed(request.events.size());
+            }
+            onRequestDone(request);
+        }
+    }
+
+    private void onRequestDone(NetworkRequestObject request) {
+        mInFlightEventsBytes.addAndGet(-request.batch.getSizeInBytes());
+        mInFlightRequestsCount.decrementAndGet();
+    }
+
+    private void signal(PipelineStage stage) {
+        if (mIsStarted && !mIsShutdown) {
+            stage.signal();
+        }
+    }
+
+    // Reads from the "fast" (in-memory) input events queue and actually writes data to the DB.
+    private void ingest() {
+        if (isIngestQueueEmpty()) {
+            return;
+        }
+        // Read here rather than in track(), so that the device is first queried on this thread, not at app startup
+        JSONObject deviceInfo = mDeviceInformation.getMutableDeviceInfo();
+
+        boolean hasHighPriorityEvents;
+        // get the lock over the DB and write data
+        synchronized (mDbLock) {
+            // 1. move events from the input queue to a temporary queue. Producers can keep adding events meanwhile.
+            // It's done holding the lock, so the dispatch stage sees the events either in the queue or in the DB.
+            List<Event> shadowCopyEventList = new ArrayList<>(mHighPriorityEventsQueue.size()
+                    + mInsertEventsQueue.size());
+            hasHighPriorityEvents = mHighPriorityEventsQueue.drainTo(shadowCopyEventList) > 0;
+            if (mInsertEventsQueue.drainTo(shadowCopyEventList) == 0 && !hasHighPriorityEvents) {
+                return;
+            }
+            if (deviceInfo != null && deviceInfo.length() > 0) {
+                for (Event event : shadowCopyEventList) {
+                    event.setDeviceInfo(deviceInfo);
+                }
+            }
+            // 2. make room for the new events: once the queue is full, the oldest events of the lowest priority
+            // are evicted, the stored ones before the new ones of the same priority.
+            // Events being sent are not, so the queue may briefly hold a few more events than its max size.
+            int excessCount = EventTable.getEventsCount(mContext) + shadowCopyEventList.size()
+                    - TracksClient.DEFAULT_EVENTS_QUEUE_MAX_SIZE;
+            if (excessCount > 0) {
+                int evictedCount = evictEvents(shadowCopyEventList, excessCount);
+                mEvictedEventsCount.addAndGet(evictedCount);
+                FlushOperation flushOperation = getFlushOperation();
+                if (flushOperation != null) {
+                    flushOperation.addDropped(evictedCount);
+                }
+            }
+            EventTable.insertEvents(mContext, shadowCopyEventList);
+        }
+        if (hasHighPriorityEvents) {
+            // Send them right away, without waiting for the threshold or the timer
+            mPendingFlush = true;
+        }
+        signal(mDispatchStage);
+    }
+
+    // Evicts excessCount events, from the lowest priority up: the stored ones first, then the new ones of the same
+    // priority, which are removed from newEvents. Returns how many were evicted. Must be called holding mDbLock.
+    private int evictEvents(List<Event> newEvents, int excessCount) {
+        int evictedCount = 0;
+        for (TracksClient.EventPriority priority : TracksClient.EventPriority.values()) {
+            // The stored events of the lower priorities are all evicted already
+            evictedCount += EventTable.evictOldestEvents(mContext, excessCount - evictedCount, priority);
+            Iterator<Event> iterator = newEvents.iterator();
+            while (evictedCount < excessCount && iterator.hasNext()) {
+                Event event = iterator.next();
+                if (event.getPriority() == priority) {
+                    iterator.remove();
+                    evictedCount++;
+                }
+            }
+            if (evictedCount >= excessCount) {
+                break;
+            }
+        }
+        return evictedCount;
+    }
+
+    // Reads the next pages of events from the DB and enqueues the requests to the network queue.
+    // At most mMaxInFlightRequests pages are in flight: the upload stage signals this stage again once one is done.
+    private void dispatch() {
+        if (mInFlightRequestsCount.get() >= mMaxInFlightRequests) {
+            return;
+        }
+
+        List<NetworkRequestObject> requests = new ArrayList<>();
+        synchronized (mDbLock) {
+            long dispatchPass = mDispatchPassCount.incrementAndGet();
+            if (mPendingBackgroundFlush) {
+                mPendingBackgroundFlush = false;
+                if (!isIngestQueueEmpty() || EventTable.hasEvents(mContext)) {
+                    mPendingFlush = true;
+                }
+            }
+            // Make sure to NOT contact the server before the backoff delay of the previous error elapsed.
+            // A pending flush is kept, and done once the delay elapsed.
+            long backoffDelayMs = mUploadBackoff.getRemainingDelayMs(System.currentTimeMillis());
+            if (backoffDelayMs == 0L
+                    && (mPendingFlush || mIsDraining
+                    || EventTable.getEventsCount(mContext) > TracksClient.DEFAULT_EVENTS_QUEUE_THRESHOLD)
+                    && NetworkUtils.isNetworkAvailable(mContext)) {
+                mPendingFlush = false; // We can remove the flushing flag now.
+                cancelWakeup(); // the upload signals this stage again once done
+                deleteExpiredEvents();
+                int freeSlotsCount = mMaxInFlightRequests - mInFlightRequestsCount.get();
+                NetworkRequestObject req;
+                while (requests.size() < freeSlotsCount && (req = createRequest()) != null) {
+                    requests.add(req);
+                }
+                // Queued holding the lock, so that a failure in the upload stage either abandons them or happens
+                // after they're sent
+                for (NetworkRequestObject request : requests) {
+                    mInFlightRequestsCount.incrementAndGet();
+                    mInFlightEventsBytes.addAndGet(request.batch.getSizeInBytes());
+                    mNetworkQueue.add(request);
+                }
+                // Keep sending pages until the table is empty
+                mIsDraining = !requests.isEmpty();
+                if (requests.isEmpty()) {
+                    if (!isIngestQueueEmpty()) {
+                        // Flush the events being ingested once they're stored
+                        mPendingFlush = true;
+                    } else if (mInFlightRequestsCount.get() > 0 || !mNetworkQueue.isEmpty()) {
+                        // The last pages are still being sent: the upload stage runs this stage again once done
+                        mPendingFlush = true;
+                    } else if (!completeFlush(dispatchPass, 0)) {
+                        // A flush was requested during this pass: the next pass completes it
+                        mPendingFlush = true;
+                    }
+                }
+            } else {
+                if (getFlushOperation() != null && backoffDelayMs == 0L && mPendingFlush && isIngestQueueEmpty()) {
+                    // No network: let the callers know once the events are stored, they're sent once it's back
+                    completeFlush(dispatchPass, EventTable.getEventsCount(mContext));
+                }
+                if (EventTable.hasEvents(mContext)) {
+                    // Try again once the backoff delay elapsed, or later for events below the threshold
+                    scheduleWakeup(backoffDelayMs > 0L ? backoffDelayMs : TracksClient.DEFAULT_EVENTS_QUEUE_TIMER_MS);
+                }
+            }
+        }
+
+        if (!requests.isEmpty()) {
+            signal(mUploadStage);
+        }
+    }
+
+    private NetworkRequestObject createRequest() {
+        while (true) {
+            // 1. lease the next page of events from the DB. Rows are deleted only once the server acknowledges them.
+            EventsBatch batch = EventTable.leaseEventsBatch(mContext,
+                    TracksClient.DEFAULT_BATCH_MAX_EVENTS, TracksClient.DEFAULT_BATCH_MAX_BYTES);
+            if (batch.isEmpty()) {
+                return null;
+            }
+
+            // 2. Expired events were deleted before leasing, but the rows of the page may still not be readable
+            List<Event> eventsList = batch.getEvents();
+            if (eventsList.isEmpty()) {
+                // Nothing worth sending in this page
+                EventTable.deleteEventsBatch(mContext, batch);
+                continue;
+            }
+
+            // 3. Create common props here. Then check later at "single event" layer if one of these props
+            // changed in that event. The JSON of the events is written straight to the connection.
+            // All the events of the batch come from the same client, so they are built from the first one.
+            Event firstEvent = eventsList.get(0);
+            NetworkRequestObject req = new NetworkRequestObject();
+            req.userAgent = TextUtils.isEmpty(firstEvent.getUserAgent())
+                    ? TracksClient.DEFAULT_USER_AGENT : firstEvent.getUserAgent();
+            req.commonProps = MessageBuilder.createRequestCommonProps(
+                    mContext,
+                    mDeviceInformation,
+                    firstEvent.getUserProperties(), req.userAgent);
+            req.events = eventsList;
+            req.batch = batch;
+            return req;
+        }
+    }
+
+    // Sends the requests to the server and wait for the responses.
+    // single network connection model.
+    private void upload() {
+        NetworkRequestObject currentRequest;
+        while ((currentRequest = mNetworkQueue.poll()) != null) {
+            // send the request if the network is available
+            UploadResponse response = NetworkUtils.isNetworkAvailable(mContext)
+                    ? send(currentRequest) : UploadResponse.noResponse();
+            synchronized (mDbLock) {
+                // Frees the slot before a flush waiting for this request completes
+                onRequestDone(currentRequest);
+                if (response.isSuccessful()) {
+                    mUploadBackoff.onSuccess();
+                    EventTable.deleteEventsBatch(mContext, currentRequest.batch);
+                    FlushOperation flushOperation = getFlushOperation();
+                    if (flushOperation != null) {
+                        flushOperation.addSent(currentRequest.events.size());
+                    }
+                } else {
+                    // The requests built ahead would fail the same way, and must wait for the backoff delay
+                    abandonQueuedRequests();
+                    setError(currentRequest, response);
+                }
+            }
+            // Send the next page, if any
+            signal(mDispatchStage);
+        }
+    }
+
+    private UploadResponse send(final NetworkRequestObject currentRequest) {
+        final boolean isGzipEnabled = mIsGzipEnabled;
+        UploadResponse response = post(currentRequest, isGzipEnabled);
+        if (isGzipEnabled && response.isClientError()) {
+            // Servers and proxies that don't accept compressed bodies don't all answer 415: try the same request
+            // uncompressed right away, without using a retry nor backing off.
+            UploadResponse uncompressedResponse = post(currentRequest, false);
+            if (response.getCode() == HttpURLConnection.HTTP_UNSUPPORTED_TYPE || uncompressedResponse.isSuccessful()) {
+                Log.w(TracksClient.LOGTAG, "The server doesn't accept gzip request bodies (" + response.getCode()
+                        + "). Disabling compression.");
+                mIsGzipEnabled = false;
+            }
+            return uncompressedResponse;
+        }
+        return response;
+    }
+
+    private UploadResponse post(final NetworkRequestObject currentRequest, boolean isGzipEnabled) {
+        return mTransport.post(mTracksRestEndpointURL, currentRequest.userAgent,
+                new UploadTransport.Body() {
+                    @Override
+                    public void writeTo(OutputStream out) throws IOException {
+                        // Stream the request, so the body is never held in memory as a whole
+                        JsonStreamWriter wr = new JsonStreamWriter(
+                                new BufferedWriter(new OutputStreamWriter(out, TracksClient.PROTOCOL_CHARSET)));
+                        MessageBuilder.writeRequest(wr, currentRequest.events, currentRequest.commonProps);
+                        wr.flush();
+                    }
+                }, isGzipEnabled);
+    }
+
+    private void setError(NetworkRequestObject request, UploadResponse response) {
+        long delayMs = mUploadBackoff.onFailure(System.currentTimeMillis(), response.getRetryAfterMs());
+        if (response.isThrottled()) {
+            Log.w(TracksClient.LOGTAG, "The server asked to slow down (" + response.getCode() + "). Retrying in "
+                    + delayMs + " ms");
+        }
+        mIsDraining = false;
+        // The events are still in the DB: release them so they are sent again by a next request,
+        // unless they already failed too many times.
+        int discardedCount = EventTable.releaseEventsBatch(mContext, request.batch,
+                TracksClient.DEFAULT_EVENT_MAX_RETRY_COUNT);
+        mDiscardedEventsCount.addAndGet(discardedCount);
+
+        // The flush cannot complete until the backoff delay elapsed: let the callers know now
+        FlushOperation flushOperation = getFlushOperation();
+        if (flushOperation != null) {
+            flushOperation.addFailed(Math.max(0, request.events.size() - discardedCount));
+            flushOperation.addDropped(discardedCount);
+            completeFlush();
+        }
+    }
+
+    // Deletes the events older than 14 days, or that failed to be sent too many times, before leasing a page.
+    // Must be called holding mDbLock.
+    private void deleteExpiredEvents() {
+        int expiredCount = EventTable.deleteExpiredEvents(mContext, TracksClient.DEFAULT_EVENT_MAX_AGE,
+                TracksClient.DEFAULT_EVENT_MAX_RETRY_COUNT);
+        if (expiredCount == 0) {
+            return;
+        }
+        mExpiredEventsCount.addAndGet(expiredCount);
+        FlushOperation flushOperation = getFlushOperation();
+        if (flushOperation != null) {
+            flushOperation.addDropped(expiredCount);
+        }
+    }
+
+    private static final class NetworkRequestObject {
+        String userAgent;
+        List<Event> events;
+        Map<String, Object> commonProps;
+        EventsBatch batch;
+    }
+
+    // Counts the events sent by a flush, and completes its future once it's done
+    private static final class FlushOperation {
+        // First dispatch pass that may complete it. Guarded by mFlushLock.
+        long mFirstCompletingPass;
+        private final AtomicInteger mSentEventsCount = new AtomicInteger();
+        private final AtomicInteger mFailedEventsCount = new AtomicInteger();
+        private final AtomicInteger mDroppedEventsCount = new AtomicInteger();
+        private final FutureTask<FlushResult> mFuture = new FutureTask<>(new Callable<FlushResult>() {
+            @Override
+            public FlushResult call() {
+                return new FlushResult(mSentEventsCount.get(), mFailedEventsCount.get(), mDroppedEventsCount.get());
+            }
+        });
+
+        void addSent(int count) {
+            mSentEventsCount.addAndGet(count);
+        }
+
+        void addFailed(int count) {
+            mFailedEventsCount.addAndGet(count);
+        }
+
+        void addDropped(int count) {
+            mDroppedEventsCount.addAndGet(count);
+        }
+
+        Future<FlushResult> getFuture() {
+            return mFuture;
+        }
+
+        void complete() {
+            mFuture.run();
+        }
+    }
+}
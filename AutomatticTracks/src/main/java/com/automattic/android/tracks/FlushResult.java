@@ -0,0 +1,43 @@
+package com.automattic.android.tracks;
+
+/**
+ * Outcome of a call to {@link TracksClient#flushAsync()}.
+ */
+public final class FlushResult {
+    private final int mSentEventsCount;
+    private final int mFailedEventsCount;
+    private final int mDroppedEventsCount;
+
+    FlushResult(int sentEventsCount, int failedEventsCount, int droppedEventsCount) {
+        mSentEventsCount = sentEventsCount;
+        mFailedEventsCount = failedEventsCount;
+        mDroppedEventsCount = droppedEventsCount;
+    }
+
+    // Events acknowledged by the server
+    public int getSentEventsCount() {
+        return mSentEventsCount;
+    }
+
+    // Events that could not be sent, because of a network or server error. They are kept and sent later.
+    public int getFailedEventsCount() {
+        return mFailedEventsCount;
+    }
+
+    // Events deleted without being sent, because they were too old, failed to be sent too many times, or were
+    // evicted from the full queue
+    public int getDroppedEventsCount() {
+        return mDroppedEventsCount;
+    }
+
+    // Whether all the events were sent
+    public boolean isSuccessful() {
+        return mFailedEventsCount == 0;
+    }
+
+    @Override
+    public String toString() {
+        return "FlushResult{sent=" + mSentEventsCount + ", failed=" + mFailedEventsCount
+                + ", dropped=" + mDroppedEventsCount + "}";
+    }
+}
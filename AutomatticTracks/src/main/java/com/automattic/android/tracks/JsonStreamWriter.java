@@ -0,0 +1,174 @@
+package com.automattic.android.tracks;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Iterator;
+
+/**
+ * Writes JSON to a stream, with no intermediate String.
+ *
+ * The output is the same as JSONObject.toString() for the same values, escaping included.
+ */
+/* package */ class JsonStreamWriter implements Closeable, Flushable {
+    private final Writer mOut;
+    // Whether the next value or name must be preceded by a comma
+    private boolean mNeedsSeparator = false;
+
+    JsonStreamWriter(Writer out) {
+        mOut = out;
+    }
+
+    JsonStreamWriter beginObject() throws IOException {
+        writeSeparator();
+        mOut.write('{');
+        return this;
+    }
+
+    JsonStreamWriter endObject() throws IOException {
+        mOut.write('}');
+        mNeedsSeparator = true;
+        return this;
+    }
+
+    JsonStreamWriter beginArray() throws IOException {
+        writeSeparator();
+        mOut.write('[');
+        return this;
+    }
+
+    JsonStreamWriter endArray() throws IOException {
+        mOut.write(']');
+        mNeedsSeparator = true;
+        return this;
+    }
+
+    JsonStreamWriter name(String name) throws IOException {
+        writeSeparator();
+        writeString(name);
+        mOut.write(':');
+        return this;
+    }
+
+    JsonStreamWriter value(String value) throws IOException {
+        writeSeparator();
+        if (value == null) {
+            mOut.write("null");
+        } else {
+            writeString(value);
+        }
+        mNeedsSeparator = true;
+        return this;
+    }
+
+    JsonStreamWriter value(boolean value) throws IOException {
+        writeSeparator();
+        mOut.write(value ? "true" : "false");
+        mNeedsSeparator = true;
+        return this;
+    }
+
+    JsonStreamWriter value(long value) throws IOException {
+        writeSeparator();
+        mOut.write(Long.toString(value));
+        mNeedsSeparator = true;
+        return this;
+    }
+
+    /**
+     * Writes a value of a JSONObject or JSONArray, recursively.
+     */
+    JsonStreamWriter value(Object value) throws IOException, JSONException {
+        if (value instanceof JSONObject) {
+            JSONObject object = (JSONObject) value;
+            beginObject();
+            Iterator<String> keys = object.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                name(key);
+                value(object.opt(key));
+            }
+            return endObject();
+        }
+        if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            beginArray();
+            for (int i = 0; i < array.length(); i++) {
+                value(array.opt(i));
+            }
+            return endArray();
+        }
+
+        writeSeparator();
+        if (value == null || value == JSONObject.NULL || value instanceof Boolean) {
+            mOut.write(String.valueOf(value));
+        } else if (value instanceof Number) {
+            mOut.write(JSONObject.numberToString((Number) value));
+        } else {
+            writeString(value.toString());
+        }
+        mNeedsSeparator = true;
+        return this;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        mOut.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mOut.close();
+    }
+
+    private void writeSeparator() throws IOException {
+        if (mNeedsSeparator) {
+            mOut.write(',');
+            mNeedsSeparator = false;
+        }
+    }
+
+    // Same escaping as org.json
+    private void writeString(String value) throws IOException {
+        mOut.write('"');
+        for (int i = 0, length = value.length(); i < length; i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                case '\\':
+                case '/':
+                    mOut.write('\\');
+                    mOut.write(c);
+                    break;
+                case '\t':
+                    mOut.write("\\t");
+                    break;
+                case '\b':
+                    mOut.write("\\b");
+                    break;
+                case '\n':
+                    mOut.write("\\n");
+                    break;
+                case '\r':
+                    mOut.write("\\r");
+                    break;
+                case '\f':
+                    mOut.write("\\f");
+                    break;
+                default:
+                    if (c <= 0x1F) {
+                        mOut.write(String.format("\\u%04x", (int) c));
+                    } else {
+                        mOut.write(c);
+                    }
+                    break;
+            }
+        }
+        mOut.write('"');
+    }
+}
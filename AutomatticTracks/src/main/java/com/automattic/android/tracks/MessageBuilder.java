@@ -3,12 +3,26 @@ package com.automattic.android.tracks;
 import android.content.Context;
 import android.util.Log;
 
-import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Builds the JSON sent to the Tracks REST endpoint.
+ *
+ * It holds no state but caches of flattened keys, which are thread-safe: none of its methods lock, so producers
+ * calling track() never wait for a request being written.
+ */
 class MessageBuilder {
 
     private static final String USER_INFO_PREFIX = "user_info_";
@@ -30,115 +44,175 @@ class MessageBuilder {
 
     public static final String ALIAS_USER_EVENT_NAME = "_aliasUser";
     public static final String ALIAS_USER_ANONID_PROP_NAME = "anonId";
+    private static final String ALIAS_USER_ANONID_LOWERCASE_PROP_NAME =
+            ALIAS_USER_ANONID_PROP_NAME.toLowerCase(Locale.ROOT);
 
-    public static synchronized boolean isReservedKeyword(String keyToTest) {
-        String keyToTestLowercase = keyToTest.toLowerCase(Locale.ROOT);
-        if (keyToTestLowercase.equals(EVENT_NAME_KEY) ||
-                keyToTestLowercase.equals(USER_AGENT_NAME_KEY) ||
-                keyToTestLowercase.equals(EVENT_TIMESTAMP_KEY) ||
-                keyToTestLowercase.equals(REQUEST_TIMESTAMP_KEY) ||
-                keyToTestLowercase.equals(USER_TYPE_KEY) ||
-                keyToTestLowercase.equals(USER_ID_KEY) ||
-                keyToTestLowercase.equals(USER_LANG_KEY) ||
-                keyToTestLowercase.equals(USER_LOGIN_NAME_KEY)
-                ) {
-            return true;
-        }
+    private static final int MAX_CACHED_FLATTEN_KEYS = 512;
+    private static final Map<String, String> sUserInfoFlattenKeys = new ConcurrentHashMap<>();
+    private static final Map<String, String> sDeviceInfoFlattenKeys = new ConcurrentHashMap<>();
+    private static final Map<String, String> sCustomFlattenKeys = new ConcurrentHashMap<>();
 
-        if (keyToTestLowercase.startsWith(USER_INFO_PREFIX) ||
-                keyToTestLowercase.startsWith(DEVICE_INFO_PREFIX)) {
-            return true;
-        }
+    private static final Set<String> RESERVED_KEYWORDS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            EVENT_NAME_KEY,
+            USER_AGENT_NAME_KEY,
+            EVENT_TIMESTAMP_KEY,
+            REQUEST_TIMESTAMP_KEY,
+            USER_TYPE_KEY,
+            USER_ID_KEY,
+            USER_LANG_KEY,
+            USER_LOGIN_NAME_KEY
+    )));
 
-        return false;
+    public static boolean isReservedKeyword(String keyToTest) {
+        String keyToTestLowercase = keyToTest.toLowerCase(Locale.ROOT);
+        return RESERVED_KEYWORDS.contains(keyToTestLowercase)
+                || keyToTestLowercase.startsWith(USER_INFO_PREFIX)
+                || keyToTestLowercase.startsWith(DEVICE_INFO_PREFIX);
     }
 
-    public static synchronized JSONObject createRequestCommonPropsJSONObject(Context ctx,
-                                                                             DeviceInformation deviceInformation,
-                                                                             JSONObject userProperties,
-                                                                             String userAgent) {
-        JSONObject commonProps = new JSONObject();
-        try {
-            commonProps.put(USER_AGENT_NAME_KEY, userAgent);
-        } catch (JSONException e) {
-            Log.e(TracksClient.LOGTAG, "Cannot add the "+  USER_AGENT_NAME_KEY + " property to request commons.");
-        }
-
-        try {
-            commonProps.put(USER_LANG_KEY, ctx.getResources().getConfiguration().locale.toString());
-        } catch (JSONException e) {
-            Log.e(TracksClient.LOGTAG, "Cannot add the device language property to request commons.");
-        }
+    /**
+     * Builds the properties shared by all the events of a request, in the order they are written.
+     */
+    public static Map<String, Object> createRequestCommonProps(Context ctx,
+                                                              DeviceInformation deviceInformation,
+                                                              JSONObject userProperties,
+                                                              String userAgent) {
+        Map<String, Object> commonProps = new LinkedHashMap<>();
+        putProperty(commonProps, USER_AGENT_NAME_KEY, userAgent);
+        putProperty(commonProps, USER_LANG_KEY, ctx.getResources().getConfiguration().locale.toString());
 
         unfolderProperties(deviceInformation.getImmutableDeviceInfo(), DEVICE_INFO_PREFIX, commonProps);
         unfolderProperties(deviceInformation.getMutableDeviceInfo(), DEVICE_INFO_PREFIX, commonProps);
         unfolderProperties(userProperties, USER_INFO_PREFIX, commonProps);
-        try {
-            commonProps.put(REQUEST_TIMESTAMP_KEY, System.currentTimeMillis());
-        } catch (JSONException e) {
-            Log.e(TracksClient.LOGTAG, "Cannot add the _rt property to the request." +
-                    " Current batch request will be discarded on the server side", e);
-        }
+        putProperty(commonProps, REQUEST_TIMESTAMP_KEY, System.currentTimeMillis());
         return commonProps;
     }
 
-    public static synchronized JSONObject createEventJSONObject(Event event, JSONObject commonProps) {
-        //TODO: check event timestamp and see if it's still valid? See TracksCleint.isStillValid
-        try {
-            JSONObject eventJSON = new JSONObject();
-            eventJSON.put(EVENT_NAME_KEY, event.getEventName());
+    /**
+     * Writes the body of a request: the events, then the common properties.
+     * Events that cannot be written are skipped.
+     */
+    public static void writeRequest(JsonStreamWriter writer, List<Event> events,
+                                    Map<String, Object> commonProps) throws IOException {
+        // Reused for every event of the request
+        Map<String, Object> eventProps = new LinkedHashMap<>();
+        writer.beginObject().name("events").beginArray();
+        for (Event event : events) {
+            eventProps.clear();
+            if (collectEventProperties(event, commonProps, eventProps)) {
+                writeProperties(writer, eventProps);
+            }
+        }
+        writer.endArray().name("commonProps");
+        writeProperties(writer, commonProps);
+        writer.endObject();
+    }
+
+    private static boolean collectEventProperties(Event event, Map<String, Object> commonProps,
+                                                  Map<String, Object> eventProps) {
+        putProperty(eventProps, EVENT_NAME_KEY, event.getEventName());
+
+        Object userAgentInCommons = commonProps.get(USER_AGENT_NAME_KEY);
+        if (userAgentInCommons == null || !String.valueOf(userAgentInCommons).equals(event.getUserAgent())) {
+            putProperty(eventProps, USER_AGENT_NAME_KEY, event.getUserAgent());
+        }
+
+        putProperty(eventProps, EVENT_TIMESTAMP_KEY, event.getTimeStamp());
 
-            if (!commonProps.has(USER_AGENT_NAME_KEY) ||
-                    !commonProps.getString(USER_AGENT_NAME_KEY).equals(event.getUserAgent())) {
-                eventJSON.put(USER_AGENT_NAME_KEY, event.getUserAgent());
+        switch (event.getUserType()) {
+            case ANON:
+                putProperty(eventProps, USER_ID_KEY, event.getUser());
+                putProperty(eventProps, USER_TYPE_KEY, USER_TYPE_ANON);
+                break;
+            case WPCOM:
+                putProperty(eventProps, USER_LOGIN_NAME_KEY, event.getUser());
+                putProperty(eventProps, USER_TYPE_KEY, USER_TYPE_WPCOM);
+                break;
+            case SIMPLENOTE:
+                putProperty(eventProps, USER_LOGIN_NAME_KEY, event.getUser());
+                putProperty(eventProps, USER_TYPE_KEY, USER_TYPE_SIMPLENOTE);
+            case POCKETCASTS:
+                putProperty(eventProps, USER_ID_KEY, event.getUser());
+                putProperty(eventProps, USER_TYPE_KEY, USER_TYPE_POCKETCASTS);
+            case DAYONE:
+                putProperty(eventProps, USER_ID_KEY, event.getUser());
+                putProperty(eventProps, USER_TYPE_KEY, USER_TYPE_DAYONE);
+        }
+
+        unfolderPropertiesNotAvailableInCommon(event.getUserProperties(), USER_INFO_PREFIX, eventProps, commonProps);
+        unfolderPropertiesNotAvailableInCommon(event.getDeviceInfo(), DEVICE_INFO_PREFIX, eventProps, commonProps);
+        unfolderProperties(event.getCustomEventProperties(), "", eventProps);
+
+        // Property names need to be lowercase and use underscores instead of dashes,
+        // but for a particular event/prop this is not the case
+        if (event.getEventName().equals(ALIAS_USER_EVENT_NAME)) {
+            Object anonID = eventProps.remove(ALIAS_USER_ANONID_LOWERCASE_PROP_NAME);
+            if (anonID == null) {
+                Log.e(TracksClient.LOGTAG, "Cannot write the JSON representation of the event object: no "
+                        + ALIAS_USER_ANONID_PROP_NAME + " property");
+                return false;
             }
+            putProperty(eventProps, ALIAS_USER_ANONID_PROP_NAME, String.valueOf(anonID));
+        }
+        return true;
+    }
 
-            eventJSON.put(EVENT_TIMESTAMP_KEY, event.getTimeStamp());
-
-            switch (event.getUserType()) {
-                case ANON:
-                    eventJSON.put(USER_ID_KEY, event.getUser());
-                    eventJSON.put(USER_TYPE_KEY, USER_TYPE_ANON);
-                    break;
-                case WPCOM:
-                    eventJSON.put(USER_LOGIN_NAME_KEY, event.getUser());
-                    eventJSON.put(USER_TYPE_KEY, USER_TYPE_WPCOM);
-                    break;
-                case SIMPLENOTE:
-                    eventJSON.put(USER_LOGIN_NAME_KEY, event.getUser());
-                    eventJSON.put(USER_TYPE_KEY, USER_TYPE_SIMPLENOTE);
-                case POCKETCASTS:
-                    eventJSON.put(USER_ID_KEY, event.getUser());
-                    eventJSON.put(USER_TYPE_KEY, USER_TYPE_POCKETCASTS);
-                case DAYONE:
-                    eventJSON.put(USER_ID_KEY, event.getUser());
-                    eventJSON.put(USER_TYPE_KEY, USER_TYPE_DAYONE);
+    // Values are either strings, or the timestamps
+    private static void writeProperties(JsonStreamWriter writer, Map<String, Object> properties) throws IOException {
+        writer.beginObject();
+        for (Map.Entry<String, Object> property : properties.entrySet()) {
+            writer.name(property.getKey());
+            Object value = property.getValue();
+            if (value instanceof Long) {
+                writer.value((long) (Long) value);
+            } else {
+                writer.value(String.valueOf(value));
             }
+        }
+        writer.endObject();
+    }
 
-            unfolderPropertiesNotAvailableInCommon(event.getUserProperties(), USER_INFO_PREFIX, eventJSON, commonProps);
-            unfolderPropertiesNotAvailableInCommon(event.getDeviceInfo(), DEVICE_INFO_PREFIX, eventJSON, commonProps);
-            unfolderProperties(event.getCustomEventProperties(), "", eventJSON);
+    // Same as JSONObject.put: a null value removes the property, and a new value for an existing key keeps its position
+    private static void putProperty(Map<String, Object> properties, String key, Object value) {
+        if (value == null) {
+            properties.remove(key);
+        } else {
+            properties.put(key, value);
+        }
+    }
 
-            // Property names need to be lowercase and use underscores instead of dashes,
-            // but for a particular event/prop this is not the case
-            if (event.getEventName().equals(ALIAS_USER_EVENT_NAME)) {
-                String anonID = eventJSON.getString(ALIAS_USER_ANONID_PROP_NAME.toLowerCase(Locale.ROOT));
-                eventJSON.put(ALIAS_USER_ANONID_PROP_NAME, anonID);
-                eventJSON.remove(ALIAS_USER_ANONID_PROP_NAME.toLowerCase(Locale.ROOT));
+    // Property keys come from a small set, so their lowercase flattened version is computed once
+    private static String flattenKey(String flattenPrefix, String key) {
+        Map<String, String> cache = getFlattenKeysCache(flattenPrefix);
+        String flattenKey = cache != null ? cache.get(key) : null;
+        if (flattenKey == null) {
+            flattenKey = (flattenPrefix + key).toLowerCase(Locale.ROOT);
+            if (cache != null && cache.size() < MAX_CACHED_FLATTEN_KEYS) {
+                cache.put(key, flattenKey);
             }
+        }
+        return flattenKey;
+    }
 
-           return eventJSON;
-        } catch (JSONException err) {
-            Log.e(TracksClient.LOGTAG, "Cannot write the JSON representation of the event object", err);
-            return null;
+    private static Map<String, String> getFlattenKeysCache(String flattenPrefix) {
+        switch (flattenPrefix) {
+            case USER_INFO_PREFIX:
+                return sUserInfoFlattenKeys;
+            case DEVICE_INFO_PREFIX:
+                return sDeviceInfoFlattenKeys;
+            case "":
+                return sCustomFlattenKeys;
+            default:
+                return null;
         }
     }
 
     // Nosara only strings property values. Don't convert JSON objs by calling toString()
     // otherwise they will be likely un-queryable
     private static void unfolderPropertiesNotAvailableInCommon(JSONObject objectToFlatten, String flattenPrefix,
-                                                                 JSONObject targetJSONObject, JSONObject commonProps) {
-        if (objectToFlatten == null || targetJSONObject == null) {
+                                                                 Map<String, Object> targetProps,
+                                                                 Map<String, Object> commonProps) {
+        if (objectToFlatten == null || targetProps == null) {
             return;
         }
 
@@ -150,39 +224,35 @@ class MessageBuilder {
         Iterator<String> iter = objectToFlatten.keys();
         while (iter.hasNext()) {
             String key = iter.next();
-            String flattenKey = String.valueOf(flattenPrefix + key).toLowerCase(Locale.ROOT);
-            try {
-                Object value = objectToFlatten.get(key);
-                String valueString;
-                if (value != null) {
-                    valueString = String.valueOf(value);
-                } else {
-                    valueString = "";
-                }
+            String flattenKey = flattenKey(flattenPrefix, key);
+            Object value = objectToFlatten.opt(key);
+            String valueString;
+            if (value != null) {
+                valueString = String.valueOf(value);
+            } else {
+                valueString = "";
+            }
 
-                String valueStringInCommons = null;
-                // Check if the same key/value is already available in common props
-                if (commonProps != null && commonProps.has(flattenKey)) {
-                    Object valueInCommons = commonProps.get(flattenKey);
-                    if (valueInCommons != null) {
-                        valueStringInCommons = String.valueOf(valueInCommons);
-                    }
+            String valueStringInCommons = null;
+            // Check if the same key/value is already available in common props
+            if (commonProps != null) {
+                Object valueInCommons = commonProps.get(flattenKey);
+                if (valueInCommons != null) {
+                    valueStringInCommons = String.valueOf(valueInCommons);
                 }
+            }
 
-                // Add the value at event level only if it's different from common
-                if (valueStringInCommons == null || !valueStringInCommons.equals(valueString)) {
-                    targetJSONObject.put(flattenKey, valueString);
-                }
-            } catch (JSONException e) {
-                // Something went wrong!
-                Log.e(TracksClient.LOGTAG, "Cannot write the flatten JSON representation of the JSON object", e);
+            // Add the value at event level only if it's different from common
+            if (valueStringInCommons == null || !valueStringInCommons.equals(valueString)) {
+                targetProps.put(flattenKey, valueString);
             }
         }
     }
 
     // Nosara only strings property values. Don't convert JSON objs by calling toString()
     // otherwise they will be likely un-queryable
-    private static void unfolderProperties(JSONObject objectToFlatten, String flattenPrefix, JSONObject targetJSONObject) {
-        unfolderPropertiesNotAvailableInCommon(objectToFlatten, flattenPrefix, targetJSONObject, null);
+    private static void unfolderProperties(JSONObject objectToFlatten, String flattenPrefix,
+                                           Map<String, Object> targetProps) {
+        unfolderPropertiesNotAvailableInCommon(objectToFlatten, flattenPrefix, targetProps, null);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,134 @@
+package com.automattic.android.tracks;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free queue used as the ingest stage of the events pipeline.
+ *
+ * Any number of threads can offer elements concurrently. Elements are taken by the pipeline consumer,
+ * and also by producers that need to evict the oldest element when the buffer is full, so polling is
+ * safe from multiple threads as well.
+ *
+ * Each slot carries a sequence number that tells producers and consumers whether it's free or
+ * published for the current lap around the ring. See Dmitry Vyukov's bounded MPMC queue:
+ * http://www.1024cores.net/home/lock-free-algorithms/queues/bounded-mpmc-queue
+ */
+/* package */ class MpscRingBuffer<E> {
+    private final int mCapacity;
+    private final int mMask;
+    private final AtomicReferenceArray<E> mBuffer;
+    private final AtomicLongArray mSequences;
+    private final AtomicLong mTail = new AtomicLong(); // next position to write
+    private final AtomicLong mHead = new AtomicLong(); // next position to read
+
+    MpscRingBuffer(int capacity) {
+        if (capacity < 2) {
+            throw new IllegalArgumentException("Capacity must be at least 2");
+        }
+        // Round up to the next power of two so the slot index is a simple mask
+        mCapacity = Integer.highestOneBit(capacity - 1) << 1;
+        mMask = mCapacity - 1;
+        mBuffer = new AtomicReferenceArray<>(mCapacity);
+        mSequences = new AtomicLongArray(mCapacity);
+        for (int i = 0; i < mCapacity; i++) {
+            mSequences.set(i, i);
+        }
+    }
+
+    int capacity() {
+        return mCapacity;
+    }
+
+    /**
+     * @return false if the buffer is full and the element was not added.
+     */
+    boolean offer(E element) {
+        if (element == null) {
+            throw new NullPointerException("Null elements are not supported");
+        }
+        long position = mTail.get();
+        while (true) {
+            int index = (int) position & mMask;
+            long diff = mSequences.get(index) - position;
+            if (diff == 0) {
+                if (mTail.compareAndSet(position, position + 1)) {
+                    mBuffer.set(index, element);
+                    // Publish the slot to the consumers
+                    mSequences.lazySet(index, position + 1);
+                    return true;
+                }
+                position = mTail.get();
+            } else if (diff < 0) {
+                // The slot still holds the element written one lap ago
+                return false;
+            } else {
+                // Another producer claimed this position already
+                position = mTail.get();
+            }
+        }
+    }
+
+    /**
+     * @return the oldest element, or null if the buffer is empty.
+     */
+    E poll() {
+        long position = mHead.get();
+        while (true) {
+            int index = (int) position & mMask;
+            long diff = mSequences.get(index) - (position + 1);
+            if (diff == 0) {
+                if (mHead.compareAndSet(position, position + 1)) {
+                    E element = mBuffer.get(index);
+                    mBuffer.set(index, null);
+                    // Hand the slot back to the producers for the next lap
+                    mSequences.lazySet(index, position + mCapacity);
+                    return element;
+                }
+                position = mHead.get();
+            } else if (diff < 0) {
+                // Nothing published at this position yet
+                return null;
+            } else {
+                // Another consumer took this position already
+                position = mHead.get();
+            }
+        }
+    }
+
+    /**
+     * Moves all the available elements to the passed collection.
+     *
+     * @return the number of elements moved.
+     */
+    int drainTo(Collection<? super E> target) {
+        int count = 0;
+        E element;
+        while ((element = poll()) != null) {
+            target.add(element);
+            count++;
+        }
+        return count;
+    }
+
+    void clear() {
+        while (poll() != null) {
+            // discard
+        }
+    }
+
+    /**
+     * @return the number of elements in the buffer. It's only an estimate while other threads are
+     * offering or polling.
+     */
+    int size() {
+        long size = mTail.get() - mHead.get();
+        return (int) Math.max(0, Math.min(size, mCapacity));
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+}
@@ -0,0 +1,119 @@
+package com.automattic.android.tracks;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import okhttp3.ConnectionPool;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.BufferedSink;
+
+/**
+ * Sends the requests with OkHttp, keeping the connections alive between batches.
+ *
+ * All the clients of the process share the same OkHttpClient, and so the same connection pool.
+ */
+/* package */ class OkHttpUploadTransport implements UploadTransport {
+    private static final MediaType CONTENT_TYPE = MediaType.parse(TracksClient.PROTOCOL_CONTENT_TYPE);
+    private static final int MAX_IDLE_CONNECTIONS = 2;
+    private static final long KEEP_ALIVE_DURATION_MS = 5 * 60 * 1000;
+    private static final int GZIP_BUFFER_SIZE = 8 * 1024;
+
+    private static OkHttpClient sSharedHttpClient;
+
+    private final OkHttpClient mHttpClient;
+
+    OkHttpUploadTransport() {
+        this(getSharedHttpClient());
+    }
+
+    OkHttpUploadTransport(OkHttpClient httpClient) {
+        mHttpClient = httpClient;
+    }
+
+    /* package */ static synchronized OkHttpClient getSharedHttpClient() {
+        if (sSharedHttpClient == null) {
+            sSharedHttpClient = new OkHttpClient.Builder()
+                    .connectTimeout(TracksClient.REST_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                    .readTimeout(TracksClient.REST_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                    .writeTimeout(TracksClient.REST_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                    .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_DURATION_MS,
+                            TimeUnit.MILLISECONDS))
+                    // HTTP/2 is negotiated with the server on TLS connections
+                    .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                    .build();
+        }
+        return sSharedHttpClient;
+    }
+
+    @Override
+    public UploadResponse post(String url, String userAgent, Body body, boolean isGzipEnabled) {
+        Request.Builder request = new Request.Builder()
+                .url(url)
+                .header("User-Agent", userAgent)
+                .post(new StreamingRequestBody(body, isGzipEnabled));
+        if (isGzipEnabled) {
+            request.header("Content-Encoding", "gzip");
+        }
+
+        Response response = null;
+        try {
+            response = mHttpClient.newCall(request.build()).execute();
+            UploadResponse uploadResponse = new UploadResponse(response.code(),
+                    UploadBackoff.parseRetryAfterMs(response.header("Retry-After"), System.currentTimeMillis()));
+            ResponseBody responseBody = response.body();
+            if (!uploadResponse.isSuccessful() && responseBody != null) {
+                // read the response of the server in case of errors
+                Log.e(TracksClient.LOGTAG, "Server error response (" + response.code() + "): "
+                        + responseBody.string());
+            }
+            return uploadResponse;
+        } catch (IOException e) {
+            Log.e(TracksClient.LOGTAG, "Error while sending the events to the server", e);
+        } catch (Exception e) {
+            Log.e(TracksClient.LOGTAG, "Error while sending the events to the server", e);
+        } finally {
+            if (response != null) {
+                response.close();
+            }
+        }
+        return UploadResponse.noResponse();
+    }
+
+    // Writes the body straight to the connection, so it is never held in memory as a whole
+    private static class StreamingRequestBody extends RequestBody {
+        private final Body mBody;
+        private final boolean mIsGzipEnabled;
+
+        StreamingRequestBody(Body body, boolean isGzipEnabled) {
+            mBody = body;
+            mIsGzipEnabled = isGzipEnabled;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return CONTENT_TYPE;
+        }
+
+        @Override
+        public void writeTo(BufferedSink sink) throws IOException {
+            if (mIsGzipEnabled) {
+                // The sink is closed by OkHttp: finish the gzip stream without closing it
+                GZIPOutputStream gzipOut = new GZIPOutputStream(sink.outputStream(), GZIP_BUFFER_SIZE);
+                mBody.writeTo(gzipOut);
+                gzipOut.finish();
+            } else {
+                mBody.writeTo(sink.outputStream());
+            }
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.automattic.android.tracks;
+
+import android.util.Log;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A unit of work of the events pipeline that runs on a shared executor.
+ *
+ * Signaling a stage schedules a single run of {@link #process()}. Signals received while the stage
+ * is already scheduled are coalesced, and signals received while it's running schedule exactly one
+ * more run once the current one completes. A stage is never executed concurrently with itself.
+ */
+/* package */ abstract class PipelineStage implements Runnable {
+    private static final int IDLE = 0;
+    private static final int SCHEDULED = 1;
+    private static final int RUNNING = 2;
+    private static final int RUNNING_SIGNALED = 3;
+
+    interface OnIdleListener {
+        void onStageIdle(PipelineStage stage);
+    }
+
+    private final String mName;
+    private final Executor mExecutor;
+    private final OnIdleListener mOnIdleListener;
+    private final AtomicInteger mState = new AtomicInteger(IDLE);
+
+    PipelineStage(String name, Executor executor, OnIdleListener onIdleListener) {
+        mName = name;
+        mExecutor = executor;
+        mOnIdleListener = onIdleListener;
+    }
+
+    String getName() {
+        return mName;
+    }
+
+    boolean isIdle() {
+        return mState.get() == IDLE;
+    }
+
+    void signal() {
+        while (true) {
+            int state = mState.get();
+            if (state == SCHEDULED || state == RUNNING_SIGNALED) {
+                return;
+            }
+            if (state == IDLE && mState.compareAndSet(IDLE, SCHEDULED)) {
+                mExecutor.execute(this);
+                return;
+            }
+            if (state == RUNNING && mState.compareAndSet(RUNNING, RUNNING_SIGNALED)) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public final void run() {
+        mState.set(RUNNING);
+        try {
+            process();
+        } catch (RuntimeException e) {
+            Log.e(TracksClient.LOGTAG, "Unexpected error in the " + mName + " stage of the events pipeline", e);
+        } finally {
+            if (mState.compareAndSet(RUNNING, IDLE)) {
+                mOnIdleListener.onStageIdle(this);
+            } else {
+                // Signaled while running: go to the back of the executor queue instead of looping here,
+                // so the other stages get a chance to run.
+                mState.set(SCHEDULED);
+                mExecutor.execute(this);
+            }
+        }
+    }
+
+    protected abstract void process();
+}
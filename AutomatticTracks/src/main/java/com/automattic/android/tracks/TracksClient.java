@@ -2,31 +2,26 @@ package com.automattic.android.tracks;
 
 import android.content.Context;
 import android.content.pm.PackageManager;
-import android.os.Handler;
 import android.util.Log;
 
 import com.automattic.android.tracks.Exceptions.EventDetailsException;
 import com.automattic.android.tracks.Exceptions.EventNameException;
-import com.automattic.android.tracks.datasets.EventTable;
 
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.URL;
 import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
-
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 
+/**
+ * Lightweight handle to the events pipeline shared by the whole process.
+ *
+ * Each client has its own user agent and user properties. Events tracked with different ones are sent in
+ * different requests.
+ * The DB, the threads, the connection pool and the device information are shared by all the clients.
+ */
 public class TracksClient {
     public static final String LOGTAG = "NosaraClient";
 
@@ -37,9 +32,41 @@ public class TracksClient {
     protected static final int DEFAULT_EVENTS_QUEUE_MAX_SIZE = 10000;
     protected static final int DEFAULT_EVENTS_QUEUE_TIMER_MS = 30000;
     protected static final int DEFAULT_EVENT_MAX_AGE = 14 * 24 * 60 * 60 * 1000 ; // 14 days
+    protected static final int DEFAULT_BATCH_MAX_EVENTS = 500;
+    protected static final int DEFAULT_BATCH_MAX_BYTES = 256 * 1024;
+    protected static final int DEFAULT_INGEST_QUEUE_CAPACITY = 1024;
+    protected static final int DEFAULT_HIGH_PRIORITY_INGEST_QUEUE_CAPACITY = 256;
+    protected static final long DEFAULT_INGEST_BLOCK_TIMEOUT_MS = 50;
+    protected static final long DEFAULT_BACKOFF_BASE_DELAY_MS = 30 * 1000;
+    protected static final long DEFAULT_BACKOFF_MAX_DELAY_MS = 30 * 60 * 1000;
+    protected static final int DEFAULT_EVENT_MAX_RETRY_COUNT = 20;
+    protected static final int DEFAULT_MAX_IN_FLIGHT_REQUESTS = 2;
 
     public static enum NosaraUserType {ANON, WPCOM, SIMPLENOTE, POCKETCASTS, DAYONE}
 
+    /**
+     * What `track` does when the in-memory queue of events that are not yet written to the DB is full.
+     */
+    public static enum IngestOverflowPolicy {
+        // Evict the oldest queued event to make room for the new one
+        DROP_OLDEST,
+        // Discard the new event
+        DROP_NEWEST,
+        // Wait for a free slot up to the configured timeout, then discard the new event
+        BLOCK_WITH_TIMEOUT
+    }
+
+    /**
+     * Lane of an event, in memory, on disk and when sending it.
+     */
+    public static enum EventPriority {
+        // Evicted first when the queue on disk is full, sent after the other events
+        LOW,
+        NORMAL,
+        // Sent right away, before the other events, and evicted last
+        HIGH
+    }
+
     /**
      * Socket timeout in milliseconds for rest requests
      */
@@ -55,26 +82,15 @@ public class TracksClient {
     private String mUserAgent = TracksClient.DEFAULT_USER_AGENT;
     private String mRestApiEndpointURL;
     private final String mTracksRestEndpointURL;
-    private DeviceInformation deviceInformation;
     private JSONObject mUserProperties = new JSONObject();
+    private volatile int mClientTag = clientTagOf(mUserAgent, mUserProperties);
+    private volatile boolean mIsShutdown = false;
 
-    // This is the main queue of events we need to lazy-write to the database
-    private final LinkedList<Event> mInsertEventsQueue = new LinkedList<>();
-
-    // Database monitor
-    private final static Object mDbLock = new Object();
-
-    // This is the queue of events we're sending on the wire
-    private final LinkedList<NetworkRequestObject> mNetworkQueue = new LinkedList<>();
-
-    private boolean mPendingFlush = false;
-    private static long WAIT_PERIOD_NETWORK_CONNECTION = 2 * 60 * 1000 ; // 2 Minutes timeout in case of network error
-    private long mLastNetworkErrorTimestamp = 0L;
-
-    // The Handler that ensures events are sent to the server when the app is left opened with no actions.
-    // This helps on sending events to the server more often, and keep data fresh.
-    Handler mHandler = new Handler();
+    private final EventsPipeline mEventsPipeline;
 
+    /**
+     * Returns a new client. All the clients of the process share the same pipeline, started by the first one.
+     */
     public static TracksClient getClient(Context ctx) {
         if (null == ctx || !checkBasicConfiguration(ctx)) {
             return null;
@@ -87,242 +103,7 @@ public class TracksClient {
         mContext = ctx;
         mRestApiEndpointURL = NOSARA_REST_API_ENDPOINT_URL_V1_1;
         mTracksRestEndpointURL = getAbsoluteURL("tracks/record");
-        deviceInformation = new DeviceInformation(ctx);
-
-        // This is the thread that reads from the "fast" (in-memory) input events queue and actually writes data to the DB.
-        Thread bufferCopyThread = new Thread(new Runnable() {
-            public void run() {
-                LinkedList<Event> shadowCopyEventList = new LinkedList<>();
-                while (true) {
-                    // 1. copy events from the input queue to a temporary queue and release the lock over the input queue.
-                    synchronized (mInsertEventsQueue) {
-                        try {
-                            if (mInsertEventsQueue.size() == 0) {
-                                mInsertEventsQueue.wait();
-                            }
-                            // copy the events and release the lock asap
-                            shadowCopyEventList.addAll(mInsertEventsQueue);
-                            mInsertEventsQueue.clear();
-                        } catch (InterruptedException err) {
-                            Log.e(LOGTAG, "Something went wrong while waiting on the input queue of events", err);
-                        }
-                    }
-                    if (shadowCopyEventList.size() > 0) {
-                        //2.  get the lock over the DB and write data
-                        synchronized (mDbLock) {
-                            // do not write events if the queue is already full
-                            // TODO: Remove older events and insert the new ones - See https://github.com/Automattic/Automattic-Tracks-Android/pull/35#discussion_r172458380
-                            if (EventTable.getEventsCount(mContext) < DEFAULT_EVENTS_QUEUE_MAX_SIZE) {
-                                for (Event currentEvent : shadowCopyEventList) {
-                                    EventTable.insertEvent(mContext, currentEvent);
-                                }
-                            }
-                            mDbLock.notifyAll();
-                        }
-                        shadowCopyEventList.clear();
-                    }
-                }
-            }
-        });
-        bufferCopyThread.setPriority(Thread.MIN_PRIORITY);
-        bufferCopyThread.start();
-
-        // This is the thread that reads from the DB and enqueues the request to the network queue
-        Thread sendToWireThread = new Thread(new Runnable() {
-            public void run() {
-                while (true) {
-                    NetworkRequestObject req = null;
-                    synchronized (mDbLock) {
-                        try {
-
-                            mHandler.removeCallbacks(mEventsCountdownRunnable); // we can remove any pending updates
-
-                            //  Make sure to NOT contact the server immediately if it was a previous network connection.
-                            // For now there is a fixed time, maybe we can add Exponential backoff later.
-                            boolean shouldWait = mLastNetworkErrorTimestamp > 0L
-                                    && (Math.abs(System.currentTimeMillis() - mLastNetworkErrorTimestamp) < WAIT_PERIOD_NETWORK_CONNECTION);
-                            if ((mPendingFlush || (!shouldWait && EventTable.getEventsCount(mContext) > DEFAULT_EVENTS_QUEUE_THRESHOLD))
-                                    && NetworkUtils.isNetworkAvailable(mContext)) {
-                                mPendingFlush = false; // We can remove the flushing flag now.
-                                try {
-                                    JSONArray events = new JSONArray();
-
-                                    // 1. get events from the DB
-                                    List<Event> eventsList = EventTable.getAndDeleteEvents(mContext, 0);
-
-                                    // 2. Check each event and keep valid ones only
-                                    if (eventsList != null && eventsList.size() > 0) {
-                                        List<Event> validEventsList = new LinkedList<>();
-                                        for (Event singleEvent : eventsList) {
-                                            if (isStillValid(singleEvent)) {
-                                                validEventsList.add(singleEvent);
-                                            }
-                                        }
-                                        eventsList = validEventsList;
-                                    }
-
-                                    // 3. Create the JSON of each event and keep the original objs to be used later in case of errors
-                                    if (eventsList != null && eventsList.size() > 0) {
-                                        // Create common props here. Then check later at "single event" layer if one of these props changed in that event.
-                                        JSONObject commonProps = MessageBuilder.createRequestCommonPropsJSONObject(
-                                                mContext,
-                                                deviceInformation,
-                                                mUserProperties, getUserAgent());
-
-                                        // Create single event obj here
-                                        for (Event singleEvent : eventsList) {
-                                            JSONObject singleEventJSON = MessageBuilder.createEventJSONObject(singleEvent, commonProps);
-                                            if (singleEventJSON != null) {
-                                                events.put(singleEventJSON);
-                                            }
-                                        }
-
-                                        JSONObject requestJSONObject = new JSONObject();
-                                        requestJSONObject.put("events", events);
-                                        requestJSONObject.put("commonProps", commonProps);
-
-                                        req = new NetworkRequestObject();
-                                        req.requestObj = requestJSONObject;
-                                        req.src = eventsList;
-                                    }
-                                } catch (JSONException err) {
-                                    Log.e(LOGTAG, "Exception creating the request JSON object", err);
-                                }
-                            } else {
-                                mHandler.postDelayed(mEventsCountdownRunnable, DEFAULT_EVENTS_QUEUE_TIMER_MS);
-                                mDbLock.wait();
-                            }
-                        } catch (InterruptedException err) {
-                            Log.e(LOGTAG, "Something went wrong while waiting on the database lock", err);
-                        }
-                    }
-
-                    if (req != null) {
-                        synchronized (mNetworkQueue) {
-                            mNetworkQueue.add(req);
-                            mNetworkQueue.notifyAll();
-                        }
-                    }
-                }
-            }
-        });
-        sendToWireThread.setPriority(Thread.MIN_PRIORITY);
-        sendToWireThread.start();
-
-        // This is the thread that sends the request to the server and wait for the response.
-        // single network connection model.
-        Thread networkThread = new Thread(new Runnable() {
-
-            public void run() {
-
-                while (true) {
-                    NetworkRequestObject currentRequest = null;
-                    // 1. copy request from the networkQueue queue to a temporary queue and release the lock over the network queue.
-                    synchronized (mNetworkQueue) {
-                        try {
-                            while (mNetworkQueue.size() == 0) {
-                                mNetworkQueue.wait();
-                            }
-                            currentRequest = mNetworkQueue.removeFirst();
-                        } catch (InterruptedException err) {
-                            Log.e(LOGTAG, "Something went wrong while waiting on the network queue", err);
-                        }
-                    }
-
-                    boolean isErrorResponse = false;
-                    // send the request if the network is available
-                    if (NetworkUtils.isNetworkAvailable(mContext)) {
-                        HttpURLConnection conn = null;
-                        try {
-                            URL requestURL = new URL(mTracksRestEndpointURL);
-                            conn = (HttpURLConnection) requestURL.openConnection();
-                            conn.setRequestProperty("Content-Type", PROTOCOL_CONTENT_TYPE);
-                            conn.setReadTimeout(REST_TIMEOUT_MS);
-                            conn.setConnectTimeout(REST_TIMEOUT_MS);
-                            conn.setUseCaches(false);
-                            conn.setRequestProperty("Connection", "close");
-                            conn.setRequestProperty("User-Agent", getUserAgent());
-                            conn.setRequestMethod("POST");
-                            conn.setDoInput(true);
-                            conn.setDoOutput(true);
-
-                            //Send request
-                            OutputStream wr = conn.getOutputStream();
-                            wr.write(currentRequest.requestObj.toString().getBytes(PROTOCOL_CHARSET));
-                            wr.flush();
-                            wr.close();
-
-                            // Read the request
-                            int respCode = conn.getResponseCode();
-                            if (respCode != HttpURLConnection.HTTP_OK && respCode != HttpURLConnection.HTTP_ACCEPTED) {
-                                isErrorResponse = true;
-                                // read the response of the server in case of errors
-                                InputStream is = conn.getInputStream();
-                                BufferedReader rd = new BufferedReader(new InputStreamReader(is));
-                                String line;
-                                StringBuffer response = new StringBuffer();
-                                while ((line = rd.readLine()) != null) {
-                                    response.append(line);
-                                    response.append('\r');
-                                }
-                                Log.e(LOGTAG, "Server error response: " + response.toString());
-                                rd.close();
-                                is.close();
-                            }
-                        } catch (MalformedURLException e) {
-                            Log.e(LOGTAG, "The REST endpoint URL is not valid!?!?! This should never happen", e);
-                            isErrorResponse = true;
-                        } catch (IOException e) {
-                            Log.e(LOGTAG, "Error while sending the events to the server", e);
-                            isErrorResponse = true;
-                        } catch (Exception e) {
-                            Log.e(LOGTAG, "Error while sending the events to the server", e);
-                            isErrorResponse = true;
-                        } finally {
-                            try {
-                                if (conn != null) {
-                                    conn.disconnect();
-                                }
-                            } catch (Exception e) {
-                            }
-                            if (isErrorResponse) {
-                                reEnqueueEventsAndSetError(currentRequest);
-                            } else {
-                                mLastNetworkErrorTimestamp = 0L;
-                            }
-                        }
-                    } else {
-                        // No network connection
-                        reEnqueueEventsAndSetError(currentRequest);
-                    }
-                } // end-while
-            }
-
-            private void reEnqueueEventsAndSetError(NetworkRequestObject request) {
-                mLastNetworkErrorTimestamp = System.currentTimeMillis();
-                // Loop on events and keep those events that we must re-enqueue
-                LinkedList<Event> mustKeepEventsList = new LinkedList<>(); // events we're re-enqueuing
-                for (Event singleEvent : request.src) {
-                    if (isStillValid(singleEvent)) {
-                        singleEvent.addRetryCount();
-                        mustKeepEventsList.add(singleEvent);
-                    }
-                }
-                if (mustKeepEventsList.size() > 0) {
-                    synchronized (mInsertEventsQueue) {
-                        mInsertEventsQueue.addAll(mustKeepEventsList);
-                        mInsertEventsQueue.notifyAll();
-                    }
-                }
-            }
-        });
-        networkThread.setPriority(Thread.NORM_PRIORITY);
-        networkThread.start();
-    }
-
-    private final class NetworkRequestObject {
-        JSONObject requestObj;
-        List<Event> src;
+        mEventsPipeline = EventsPipeline.acquireShared(ctx, mTracksRestEndpointURL);
     }
 
     private static boolean checkBasicConfiguration(Context context) {
@@ -354,67 +135,146 @@ public class TracksClient {
 
     public void registerUserProperties(JSONObject props) {
         this.mUserProperties = props;
+        mClientTag = clientTagOf(mUserAgent, props);
     }
 
     public void clearUserProperties() {
         this.mUserProperties = null;
+        mClientTag = clientTagOf(mUserAgent, null);
+    }
+
+    /* package */ JSONObject getUserProperties() {
+        return mUserProperties;
     }
 
     // Force events to be sent to the Tracks backend.
     // Note: Underlying queues are cleared on success only. To empty/clear the queues see `clearQueues`.
     public void flush() {
-        // we need to get the lock over the DB to awake the writing thread, and to be sure the flush is done asap.
-        // Since we need the lock over the DB is better to do that in a thread. Otherwise the caller should wait until the DB is ready.
-        Thread flushingThread = new Thread(new Runnable() {
-            public void run() {
-                synchronized (mDbLock) {
-                    if (EventTable.getEventsCount(mContext) > 0) {
-                        mPendingFlush = true;
-                        mDbLock.notifyAll();
-                    }
-                }
-            }
-        });
-        flushingThread.setPriority(Thread.MIN_PRIORITY);
-        flushingThread.start();
+        mEventsPipeline.flush();
+    }
+
+    /**
+     * Same as {@link #flush()}, returning the outcome of the flush.
+     *
+     * The returned future completes once all the events, including the ones of the other clients, are sent,
+     * or as soon as some of them fail to be sent. Wait for it with a timeout, e.g. before logging the user out,
+     * and never from the main thread. Calls made while a flush is in progress share its result.
+     */
+    public Future<FlushResult> flushAsync() {
+        return mEventsPipeline.flush();
     }
 
-    // This removes all the events from the queues
+    // This removes all the events from the queues, including the ones of the other clients
     public void clearQueues() {
-        Thread clearingThread = new Thread(new Runnable() {
-            public void run() {
-                synchronized (mInsertEventsQueue) {
-                    mInsertEventsQueue.clear();
-                    // No need to call notify here
-                }
-                synchronized (mDbLock) {
-                    if (EventTable.hasEvents(mContext)) {
-                        EventTable.purgeAll(mContext);
-                        // No need to call notify here
-                    }
-                }
-                synchronized (mNetworkQueue) {
-                    mNetworkQueue.clear();
-                    // No need to call notify here
-                }
-            }
-        });
-        clearingThread.setPriority(Thread.MAX_PRIORITY);
-        clearingThread.start();
+        mEventsPipeline.clear();
+    }
+
+    public void setIngestOverflowPolicy(IngestOverflowPolicy policy) {
+        setIngestOverflowPolicy(policy, DEFAULT_INGEST_BLOCK_TIMEOUT_MS);
+    }
+
+    /**
+     * @param timeoutMs How long `track` can block the caller when the policy is BLOCK_WITH_TIMEOUT.
+     */
+    public void setIngestOverflowPolicy(IngestOverflowPolicy policy, long timeoutMs) {
+        if (policy == null) {
+            Log.e(LOGTAG, "IngestOverflowPolicy cannot be null!");
+            return;
+        }
+        mEventsPipeline.setOverflowPolicy(policy, timeoutMs);
     }
 
-    private Runnable mEventsCountdownRunnable = new Runnable() {
-        @Override
-        public void run() {
-            flush();
+    /**
+     * Enables or disables the gzip compression of the request bodies. Enabled by default, it is disabled
+     * automatically if the server rejects compressed bodies but accepts the same request uncompressed.
+     */
+    public void setRequestCompressionEnabled(boolean isEnabled) {
+        mEventsPipeline.setGzipEnabled(isEnabled);
+    }
+
+    /**
+     * Sets how many requests can be built ahead and waiting to be sent, including the one being sent.
+     * Each of them holds up to DEFAULT_BATCH_MAX_BYTES of events in memory. Defaults to 2, so that the next
+     * request is ready as soon as the previous one is acknowledged.
+     */
+    public void setMaxInFlightRequests(int maxInFlightRequests) {
+        if (maxInFlightRequests < 1) {
+            Log.e(LOGTAG, "At least one request must be allowed in flight!");
+            return;
+        }
+        mEventsPipeline.setMaxInFlightRequests(maxInFlightRequests);
+    }
+
+    // Size of the events held in memory by the requests in flight
+    public long getInFlightEventsBytes() {
+        return mEventsPipeline.getInFlightEventsBytes();
+    }
+
+    // Number of events discarded because the in-memory queue was full
+    public long getDroppedEventsCount() {
+        return mEventsPipeline.getDroppedEventsCount();
+    }
+
+    // Number of events discarded because they failed to be sent too many times
+    public long getDiscardedEventsCount() {
+        return mEventsPipeline.getDiscardedEventsCount();
+    }
+
+    // Number of stored events deleted to make room for newer ones because the queue on disk was full
+    public long getEvictedEventsCount() {
+        return mEventsPipeline.getEvictedEventsCount();
+    }
+
+    // Number of stored events deleted before being sent because they were older than 14 days, or had already
+    // failed to be sent too many times
+    public long getExpiredEventsCount() {
+        return mEventsPipeline.getExpiredEventsCount();
+    }
+
+    // Number of times the device info attached to the events was read again from the system
+    public long getDeviceInfoRebuildCount() {
+        return mEventsPipeline.getDeviceInfoRebuildCount();
+    }
+
+    /**
+     * Stops this client. Events it tracks after this call are dropped.
+     * The shared pipeline keeps running for the other clients. Once the last one is stopped, events not yet
+     * written to the DB are dropped, and the events stored in the DB are sent by the next client created in
+     * the process.
+     */
+    public synchronized void shutdown() {
+        if (mIsShutdown) {
+            return;
         }
-    };
+        mIsShutdown = true;
+        EventsPipeline.releaseShared(mEventsPipeline);
+    }
+
+    /**
+     * Blocks the calling thread until all the pending work of this client is done, or the timeout elapses.
+     * Never call this from the main thread.
+     *
+     * @return true if the client is idle, false if the timeout elapsed first.
+     */
+    public boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+        return mEventsPipeline.awaitIdle(timeout, unit);
+    }
 
     public void track(String eventName, String user, NosaraUserType userType) {
         this.track(eventName, null, user, userType);
     }
 
     public void track(String eventName, JSONObject customProps, String user, NosaraUserType userType) {
+        this.track(eventName, customProps, user, userType, EventPriority.NORMAL);
+    }
+
+    public void track(String eventName, JSONObject customProps, String user, NosaraUserType userType,
+                      EventPriority priority) {
+        if (mIsShutdown) {
+            Log.w(LOGTAG, "The client is shut down. Dropping event: " + eventName);
+            return;
+        }
+
         Event event;
         try {
             event = new Event(
@@ -429,10 +289,9 @@ public class TracksClient {
             return;
         }
 
-        JSONObject deviceInfo = deviceInformation.getMutableDeviceInfo();
-        if (deviceInfo != null && deviceInfo.length() > 0) {
-            event.setDeviceInfo(deviceInfo);
-        }
+        event.setClientTag(mClientTag);
+        event.setPriority(priority);
+        // The device info is attached by the pipeline, off the calling thread
 
         if (mUserProperties != null && mUserProperties.length() > 0) {
             event.setUserProperties(mUserProperties);
@@ -451,11 +310,8 @@ public class TracksClient {
             }
         }
 
-        // Write in the insertEventQueue and notify the thread that actually write the data to the DB
-        synchronized (mInsertEventsQueue) {
-            mInsertEventsQueue.add(event);
-            mInsertEventsQueue.notify();
-        }
+        // Hand the event over to the pipeline that actually writes the data to the DB
+        mEventsPipeline.enqueue(event);
     }
 
     public void trackAliasUser(String user, String anonUser, NosaraUserType userType) {
@@ -478,6 +334,18 @@ public class TracksClient {
         trackAliasUser(user, anonUser, TracksClient.NosaraUserType.WPCOM);
     }
 
+    /**
+     * Returns the tag of the events tracked with this user agent and these user properties. Events with the same
+     * tag share the User-Agent header and the common properties of a request, so the tag only depends on them:
+     * it stays the same after a restart, and the rows left by a previous process go with the events of the
+     * client that has the same settings now.
+     */
+    /* package */ static int clientTagOf(String userAgent, JSONObject userProperties) {
+        String userPropertiesString = userProperties != null && userProperties.length() > 0
+                ? userProperties.toString() : "";
+        return 31 * String.valueOf(userAgent).hashCode() + userPropertiesString.hashCode();
+    }
+
     private String getAbsoluteURL(String url) {
         // if it already starts with our endpoint, let it pass through
         if (url.indexOf(mRestApiEndpointURL) == 0) {
@@ -494,18 +362,10 @@ public class TracksClient {
     //Sets the User-Agent header to be sent with each future request.
     public void setUserAgent(String userAgent) {
         mUserAgent = userAgent;
+        mClientTag = clientTagOf(userAgent, mUserProperties);
     }
 
     public String getUserAgent() {
         return mUserAgent;
     }
-
-    private boolean isStillValid(Event event) {
-        // Discard events > 14 days
-        if (Math.abs(System.currentTimeMillis() - event.getTimeStamp()) > DEFAULT_EVENT_MAX_AGE) {
-            return false;
-        }
-        // Should we consider the retry count?
-        return true;
-    }
-}
\ No newline at end of file
+}
@@ -0,0 +1,89 @@
+package com.automattic.android.tracks;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Decides how long to wait before the next upload after a failure.
+ *
+ * The delay grows exponentially with the number of consecutive failures, and the actual value is picked at random
+ * between 0 and that ceiling ("full jitter"), so that devices that failed at the same time don't retry at the same time.
+ * A Retry-After returned by the server is a lower bound of the delay.
+ */
+/* package */ class UploadBackoff {
+    // Upper bound of the Retry-After we honor, in case the server sends something unreasonable
+    private static final long MAX_RETRY_AFTER_MS = 24 * 60 * 60 * 1000;
+    private static final String HTTP_DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
+
+    private final long mBaseDelayMs;
+    private final long mMaxDelayMs;
+    private final Random mRandom;
+
+    private int mConsecutiveFailures = 0;
+    private long mNextAttemptTimestamp = 0L;
+
+    UploadBackoff(long baseDelayMs, long maxDelayMs) {
+        this(baseDelayMs, maxDelayMs, new Random());
+    }
+
+    UploadBackoff(long baseDelayMs, long maxDelayMs, Random random) {
+        mBaseDelayMs = baseDelayMs;
+        mMaxDelayMs = maxDelayMs;
+        mRandom = random;
+    }
+
+    /**
+     * @param retryAfterMs the delay requested by the server, or 0 if none.
+     * @return the delay before the next attempt.
+     */
+    synchronized long onFailure(long now, long retryAfterMs) {
+        mConsecutiveFailures++;
+        // Cap the exponent, the ceiling reaches mMaxDelayMs long before anyway
+        int exponent = Math.min(mConsecutiveFailures - 1, 30);
+        long ceiling = Math.min(mMaxDelayMs, mBaseDelayMs << exponent);
+        long delay = (long) (mRandom.nextDouble() * ceiling);
+        delay = Math.max(delay, Math.min(retryAfterMs, MAX_RETRY_AFTER_MS));
+        mNextAttemptTimestamp = now + delay;
+        return delay;
+    }
+
+    synchronized void onSuccess() {
+        mConsecutiveFailures = 0;
+        mNextAttemptTimestamp = 0L;
+    }
+
+    synchronized long getRemainingDelayMs(long now) {
+        return Math.max(0L, mNextAttemptTimestamp - now);
+    }
+
+    synchronized int getConsecutiveFailures() {
+        return mConsecutiveFailures;
+    }
+
+    /**
+     * Parses the value of a Retry-After header, either a number of seconds or an HTTP date.
+     *
+     * @return the delay in milliseconds, or 0 if the value is missing or not valid.
+     */
+    static long parseRetryAfterMs(String value, long now) {
+        if (StringUtils.isBlank(value)) {
+            return 0L;
+        }
+        value = value.trim();
+        try {
+            return Math.max(0L, Long.parseLong(value) * 1000);
+        } catch (NumberFormatException e) {
+            // Not a number of seconds, try with a date
+        }
+        try {
+            SimpleDateFormat format = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
+            Date date = format.parse(value);
+            return date != null ? Math.max(0L, date.getTime() - now) : 0L;
+        } catch (ParseException e) {
+            return 0L;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.automattic.android.tracks;
+
+import java.net.HttpURLConnection;
+
+/**
+ * Outcome of sending a batch of events to the server.
+ */
+/* package */ class UploadResponse {
+    // The request failed before any response was received
+    static final int NO_RESPONSE = -1;
+    static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    private final int mCode;
+    private final long mRetryAfterMs;
+
+    UploadResponse(int code, long retryAfterMs) {
+        mCode = code;
+        mRetryAfterMs = retryAfterMs;
+    }
+
+    static UploadResponse noResponse() {
+        return new UploadResponse(NO_RESPONSE, 0L);
+    }
+
+    int getCode() {
+        return mCode;
+    }
+
+    // Delay requested by the server before the next request, or 0 if none
+    long getRetryAfterMs() {
+        return mRetryAfterMs;
+    }
+
+    boolean isSuccessful() {
+        return mCode == HttpURLConnection.HTTP_OK || mCode == HttpURLConnection.HTTP_ACCEPTED;
+    }
+
+    // The server rejected the request itself, rather than being unable to process it now
+    boolean isClientError() {
+        return mCode >= HttpURLConnection.HTTP_BAD_REQUEST && mCode < HttpURLConnection.HTTP_INTERNAL_ERROR
+                && !isThrottled();
+    }
+
+    // The server is overloaded, or asked us to slow down
+    boolean isThrottled() {
+        return mCode == HTTP_TOO_MANY_REQUESTS || mCode == HttpURLConnection.HTTP_UNAVAILABLE;
+    }
+}
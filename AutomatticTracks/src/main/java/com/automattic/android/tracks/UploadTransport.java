@@ -0,0 +1,23 @@
+package com.automattic.android.tracks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Sends the request bodies built by the events pipeline to the Tracks REST endpoint.
+ */
+/* package */ interface UploadTransport {
+    /**
+     * Writes a request body, flushing but not closing the stream.
+     * May be called more than once if the transport retries the request.
+     */
+    interface Body {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * @param isGzipEnabled whether the body should be sent gzip-compressed.
+     * @return the response of the server, or UploadResponse.noResponse() if the request failed before getting one.
+     */
+    UploadResponse post(String url, String userAgent, Body body, boolean isGzipEnabled);
+}
@@ -0,0 +1,122 @@
+package com.automattic.android.tracks.datasets;
+
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Steps upgrading tracks.db from each version to the next one, keeping the queued events.
+ *
+ * A step only changes the schema while the DB is being opened, so that an app update doesn't delay its first
+ * launch. The rows a step has to rewrite are migrated afterwards, a chunk at a time, by {@link #migrateRows}.
+ * Until then, EventTable reads the rows left in the previous format as well.
+ */
+/* package */ final class DatabaseMigrations {
+    static final int FIRST_VERSION = 1;
+
+    abstract static class Migration {
+        // Runs in the upgrade transaction: must not go through the rows
+        abstract void migrateSchema(SQLiteDatabase db);
+
+        // Rewrites at most maxRows rows left in the previous format, and returns how many were rewritten
+        int migrateRows(SQLiteDatabase db, int maxRows) {
+            return 0;
+        }
+    }
+
+    // MIGRATIONS[i] upgrades version FIRST_VERSION + i to the next one
+    private static final Migration[] MIGRATIONS = {
+            // 2: rows are leased to the requests sending them
+            new Migration() {
+                @Override
+                void migrateSchema(SQLiteDatabase db) {
+                    EventTable.addLeaseColumns(db);
+                }
+            },
+            // 3: properties are encoded with PropertiesCodec
+            new Migration() {
+                @Override
+                void migrateSchema(SQLiteDatabase db) {
+                }
+
+                @Override
+                int migrateRows(SQLiteDatabase db, int maxRows) {
+                    return EventTable.encodeProperties(db, maxRows);
+                }
+            },
+            // 4: user properties and device info are stored once in tbl_snapshots
+            new Migration() {
+                @Override
+                void migrateSchema(SQLiteDatabase db) {
+                    EventTable.addSnapshotColumns(db);
+                }
+
+                @Override
+                int migrateRows(SQLiteDatabase db, int maxRows) {
+                    return EventTable.moveToSnapshots(db, maxRows);
+                }
+            },
+            // 5: events are tagged with the client that tracked them
+            new Migration() {
+                @Override
+                void migrateSchema(SQLiteDatabase db) {
+                    EventTable.addClientTagColumn(db);
+                }
+            },
+            // 6: expired events are looked up with indexes
+            new Migration() {
+                @Override
+                void migrateSchema(SQLiteDatabase db) {
+                    EventTable.addExpiryIndexes(db);
+                }
+            },
+            // 7: events have a priority lane
+            new Migration() {
+                @Override
+                void migrateSchema(SQLiteDatabase db) {
+                    EventTable.addPriorityColumn(db);
+                }
+            },
+            // 8: snapshots still in use are looked up with indexes
+            new Migration() {
+                @Override
+                void migrateSchema(SQLiteDatabase db) {
+                    EventTable.addSnapshotIndexes(db);
+                }
+            },
+            // 9: the version of the format of the rows is recorded. The rows of an earlier version may have been
+            // partly migrated: they're all checked once.
+            new Migration() {
+                @Override
+                void migrateSchema(SQLiteDatabase db) {
+                    MetadataTable.createTables(db, FIRST_VERSION);
+                }
+            },
+    };
+
+    static final int LATEST_VERSION = FIRST_VERSION + MIGRATIONS.length;
+
+    private DatabaseMigrations() {
+    }
+
+    static void migrateSchema(SQLiteDatabase db, int oldVersion, int newVersion) {
+        for (int version = Math.max(oldVersion, FIRST_VERSION); version < newVersion; version++) {
+            MIGRATIONS[version - FIRST_VERSION].migrateSchema(db);
+        }
+    }
+
+    /**
+     * Rewrites at most maxRows rows left in a previous format, in a DB whose schema is at the passed version and
+     * whose rows are at least in the format of rowsVersion.
+     * Migrations are done in order, so that each one gets the rows in the format it expects.
+     *
+     * @return the number of rows rewritten, 0 once all the rows are in the format of the version.
+     */
+    static int migrateRows(SQLiteDatabase db, int rowsVersion, int version, int maxRows) {
+        for (int i = Math.max(rowsVersion, FIRST_VERSION) - FIRST_VERSION; i < version - FIRST_VERSION; i++) {
+            int numRows = MIGRATIONS[i].migrateRows(db, maxRows);
+            if (numRows > 0) {
+                return numRows;
+            }
+        }
+        return 0;
+    }
+}
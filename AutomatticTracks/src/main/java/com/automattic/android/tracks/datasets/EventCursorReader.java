@@ -0,0 +1,110 @@
+package com.automattic.android.tracks.datasets;
+
+import android.database.Cursor;
+import android.util.Log;
+
+import com.automattic.android.tracks.Event;
+import com.automattic.android.tracks.Exceptions.EventNameException;
+import com.automattic.android.tracks.TracksClient;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads the events of a cursor over the columns of {@link EventTable#SELECT_EVENTS}.
+ *
+ * Column indexes are looked up once for the cursor rather than for every row, and each snapshot is decoded once
+ * for all the events sharing it.
+ *
+ * Rows are still read into {@link Event} objects rather than into primitive arrays: the request writer and
+ * the callers of getAndDeleteEvents take events, so arrays would only be copied into them.
+ */
+/* package */ final class EventCursorReader {
+    private final Cursor mCursor;
+    private final int mEventIdIndex;
+    private final int mEventNameIndex;
+    private final int mUserIndex;
+    private final int mUserAgentIndex;
+    private final int mUserTypeIndex;
+    private final int mTimestampIndex;
+    private final int mRetryCountIndex;
+    private final int mClientTagIndex;
+    private final int mPriorityIndex;
+    private final int mCustomPropsIndex;
+    private final int mUserPropsIdIndex;
+    private final int mUserPropsSnapshotIndex;
+    private final int mUserPropsIndex;
+    private final int mDeviceInfoIdIndex;
+    private final int mDeviceInfoSnapshotIndex;
+    private final int mDeviceInfoIndex;
+    private final Map<Long, JSONObject> mDecodedSnapshots = new HashMap<>();
+
+    EventCursorReader(Cursor cursor) {
+        mCursor = cursor;
+        mEventIdIndex = cursor.getColumnIndexOrThrow("event_id");
+        mEventNameIndex = cursor.getColumnIndexOrThrow("event_name");
+        mUserIndex = cursor.getColumnIndexOrThrow("user");
+        mUserAgentIndex = cursor.getColumnIndexOrThrow("user_agent");
+        mUserTypeIndex = cursor.getColumnIndexOrThrow("user_type");
+        mTimestampIndex = cursor.getColumnIndexOrThrow("timestamp");
+        mRetryCountIndex = cursor.getColumnIndexOrThrow("retry_count");
+        mClientTagIndex = cursor.getColumnIndexOrThrow("client_tag");
+        mPriorityIndex = cursor.getColumnIndexOrThrow("priority");
+        mCustomPropsIndex = cursor.getColumnIndexOrThrow("custom_props");
+        mUserPropsIdIndex = cursor.getColumnIndexOrThrow("user_props_id");
+        mUserPropsSnapshotIndex = cursor.getColumnIndexOrThrow("user_props_snapshot");
+        mUserPropsIndex = cursor.getColumnIndexOrThrow("user_props");
+        mDeviceInfoIdIndex = cursor.getColumnIndexOrThrow("device_info_id");
+        mDeviceInfoSnapshotIndex = cursor.getColumnIndexOrThrow("device_info_snapshot");
+        mDeviceInfoIndex = cursor.getColumnIndexOrThrow("device_info");
+    }
+
+    long getEventId() {
+        return mCursor.getLong(mEventIdIndex);
+    }
+
+    /**
+     * @return the event of the current row, or null if it cannot be read.
+     */
+    Event readEvent() {
+        final String eventName = mCursor.getString(mEventNameIndex);
+        final String user = mCursor.getString(mUserIndex);
+        final String userAgent = mCursor.isNull(mUserAgentIndex) ? null : mCursor.getString(mUserAgentIndex);
+        TracksClient.NosaraUserType userType = TracksClient.NosaraUserType.values()[mCursor.getInt(mUserTypeIndex)];
+
+        try {
+            Event currentEvent = new Event(eventName, user, userType, userAgent, mCursor.getLong(mTimestampIndex));
+            currentEvent.setRetryCount(mCursor.getInt(mRetryCountIndex));
+            currentEvent.setClientTag(mCursor.getInt(mClientTagIndex));
+            currentEvent.setPriority(TracksClient.EventPriority.values()[mCursor.getInt(mPriorityIndex)]);
+            currentEvent.setDeviceInfo(readSnapshot(mDeviceInfoIdIndex, mDeviceInfoSnapshotIndex, mDeviceInfoIndex));
+            currentEvent.setUserProperties(readSnapshot(mUserPropsIdIndex, mUserPropsSnapshotIndex, mUserPropsIndex));
+            currentEvent.setCustomProperties(EventTable.readProperties(mCursor, mCustomPropsIndex));
+            return currentEvent;
+        } catch (EventNameException e) {
+            Log.e(TracksDatabaseHelper.LOGTAG, "Cannot load event from the DB!  Name of the event is not correct?!?", e);
+        } catch (JSONException e) {
+            Log.e(TracksDatabaseHelper.LOGTAG, "Cannot recreate the event obj from the DB data!", e);
+        } catch (Exception e) {
+            Log.e(TracksDatabaseHelper.LOGTAG, "Cannot recreate the event obj from the DB data!", e);
+        }
+        return null;
+    }
+
+    // Rows not migrated to snapshots yet still hold their properties
+    private JSONObject readSnapshot(int idIndex, int dataIndex, int legacyIndex) throws JSONException {
+        if (mCursor.isNull(idIndex)) {
+            return EventTable.readProperties(mCursor, legacyIndex);
+        }
+        long snapshotId = mCursor.getLong(idIndex);
+        JSONObject snapshot = mDecodedSnapshots.get(snapshotId);
+        if (snapshot == null) {
+            snapshot = EventTable.readProperties(mCursor, dataIndex);
+            mDecodedSnapshots.put(snapshotId, snapshot);
+        }
+        return snapshot;
+    }
+}
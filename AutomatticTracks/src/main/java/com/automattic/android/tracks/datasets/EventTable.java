@@ -7,16 +7,51 @@ import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 
 import com.automattic.android.tracks.Event;
-import com.automattic.android.tracks.Exceptions.EventNameException;
 import com.automattic.android.tracks.TracksClient;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class EventTable {
+    // Number of rows in tbl_events. Seeded when the DB is opened, then kept in step with every write,
+    // so that threshold checks don't need to query the DB.
+    private static final AtomicInteger sEventsCount = new AtomicInteger();
+
+    // A lease older than this is considered abandoned, and the rows can be leased again
+    private static final long LEASE_TIMEOUT_MS = 10 * 60 * 1000;
+
+    // Rows not being sent that are too old, timestamped too far in the future, or out of retries.
+    // Written as a union, as SQLite would rather scan the table than look up a plain OR in the two indexes.
+    static final String EXPIRED_EVENTS_SELECTION = "batch_id IS NULL AND event_id IN ("
+            + "SELECT event_id FROM tbl_events WHERE timestamp < ?1 OR timestamp > ?2"
+            + " UNION SELECT event_id FROM tbl_events WHERE retry_count >= ?3)";
+
+    // The events evicted from a full queue: the oldest of the lowest priorities, that are not being sent.
+    // "+batch_id" keeps SQLite from picking idx_events_batch_id, which would sort all the rows not being sent:
+    // the range of idx_events_priority is read in the ORDER BY order instead, and the query stops at the limit.
+    static final String SELECT_EVICTED_EVENT_IDS = "SELECT event_id FROM tbl_events"
+            + " WHERE priority <= ?1 AND +batch_id IS NULL ORDER BY priority ASC, event_id ASC LIMIT ?2";
+
+    // The client of the first available event of a lane. Lanes are looked up one at a time, so that the rows of each
+    // one come in the order of idx_events_priority, and the query stops at the first available one.
+    static final String SELECT_LANE_CLIENT_TAG = "SELECT client_tag FROM tbl_events WHERE priority = ?1"
+            + " AND (batch_id IS NULL OR leased_at < ?2) ORDER BY event_id ASC LIMIT 1";
+
+    // The events, with the data of their snapshots. Only the columns EventCursorReader reads are selected.
+    static final String SELECT_EVENTS = "SELECT event_id, event_name, user, user_agent, user_type, timestamp,"
+            + " retry_count, client_tag, priority, custom_props, user_props_id, user_props, device_info_id, device_info,"
+            + " user_snapshot.data AS user_props_snapshot, device_snapshot.data AS device_info_snapshot"
+            + " FROM tbl_events"
+            + " LEFT JOIN tbl_snapshots AS user_snapshot ON user_snapshot.snapshot_id = tbl_events.user_props_id"
+            + " LEFT JOIN tbl_snapshots AS device_snapshot ON device_snapshot.snapshot_id = tbl_events.device_info_id";
 
     protected static void createTables(SQLiteDatabase db) {
         db.execSQL("CREATE TABLE tbl_events ("
@@ -27,10 +62,144 @@ public class EventTable {
                 + " timestamp       INTEGER,"
                 + " retry_count     INTEGER DEFAULT 0,"
                 + " user_type       INTEGER DEFAULT 0,"
-                + " user_props      TEXT,"
-                + " device_info     TEXT,"
-                + " custom_props    TEXT"+
+                + " user_props      BLOB,"  // before version 4, user_props and device_info were stored in the row
+                + " device_info     BLOB,"
+                + " custom_props    BLOB,"  // properties encoded with PropertiesCodec
+                + " batch_id        TEXT,"  // id of the request the row is leased to, while it's being sent
+                + " leased_at       INTEGER,"
+                + " user_props_id   INTEGER,"  // snapshot_id in tbl_snapshots
+                + " device_info_id  INTEGER,"
+                + " client_tag      INTEGER NOT NULL DEFAULT 0,"  // TracksClient.clientTagOf() of the tracking client
+                + " priority        INTEGER NOT NULL DEFAULT 1"+  // ordinal of its TracksClient.EventPriority
                 ")");
+        createLeaseIndex(db);
+        createExpiryIndexes(db);
+        createPriorityIndex(db);
+        createSnapshotIndexes(db);
+    }
+
+    // Version 2 adds the lease columns
+    protected static void addLeaseColumns(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE tbl_events ADD COLUMN batch_id TEXT");
+        db.execSQL("ALTER TABLE tbl_events ADD COLUMN leased_at INTEGER");
+        createLeaseIndex(db);
+    }
+
+    // Version 3 stores the properties encoded with PropertiesCodec, instead of their JSON text.
+    // Rewrites at most maxRows rows still holding JSON text, and returns how many were rewritten or deleted.
+    protected static int encodeProperties(SQLiteDatabase db, int maxRows) {
+        Cursor cursor = db.rawQuery("SELECT event_id, user_props, device_info, custom_props FROM tbl_events"
+                + " WHERE typeof(user_props) = 'text' OR typeof(device_info) = 'text'"
+                + " OR typeof(custom_props) = 'text' LIMIT ?1", new String[]{Integer.toString(maxRows)});
+        SQLiteStatement update = db.compileStatement("UPDATE tbl_events SET user_props = ?1, device_info = ?2,"
+                + " custom_props = ?3 WHERE event_id = ?4");
+        int numRows = 0;
+        int numDeleted = 0;
+        try {
+            while (cursor.moveToNext()) {
+                numRows++;
+                long eventId = cursor.getLong(0);
+                try {
+                    bindProperties(update, 1, readProperties(cursor, 1));
+                    bindProperties(update, 2, readProperties(cursor, 2));
+                    bindProperties(update, 3, readProperties(cursor, 3));
+                    update.bindLong(4, eventId);
+                    update.executeUpdateDelete();
+                } catch (JSONException e) {
+                    // The event could not be read anyway
+                    numDeleted += db.delete("tbl_events", "event_id = ?1", new String[]{Long.toString(eventId)});
+                } finally {
+                    update.clearBindings();
+                }
+            }
+        } finally {
+            SqlUtils.closeCursor(cursor);
+            SqlUtils.closeStatement(update);
+        }
+        if (numDeleted > 0) {
+            Log.w(TracksDatabaseHelper.LOGTAG, "Deleted " + numDeleted + " events whose properties are not valid.");
+        }
+        return numRows;
+    }
+
+    // Version 4 moves user_props and device_info to tbl_snapshots
+    protected static void addSnapshotColumns(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE tbl_events ADD COLUMN user_props_id INTEGER");
+        db.execSQL("ALTER TABLE tbl_events ADD COLUMN device_info_id INTEGER");
+        SnapshotTable.createTables(db);
+    }
+
+    // Moves the properties of at most maxRows rows to tbl_snapshots, and returns how many were moved
+    protected static int moveToSnapshots(SQLiteDatabase db, int maxRows) {
+        Cursor cursor = db.rawQuery("SELECT event_id, user_props, device_info FROM tbl_events"
+                + " WHERE user_props IS NOT NULL OR device_info IS NOT NULL LIMIT ?1",
+                new String[]{Integer.toString(maxRows)});
+        SQLiteStatement update = db.compileStatement("UPDATE tbl_events SET user_props_id = ?1, device_info_id = ?2,"
+                + " user_props = NULL, device_info = NULL WHERE event_id = ?3");
+        SnapshotTable.Writer snapshots = new SnapshotTable.Writer(db);
+        int numRows = 0;
+        try {
+            while (cursor.moveToNext()) {
+                numRows++;
+                // The properties are already encoded by the version 3 migration, which is done first
+                if (!cursor.isNull(1)) {
+                    update.bindLong(1, snapshots.getOrInsert(cursor.getBlob(1)));
+                }
+                if (!cursor.isNull(2)) {
+                    update.bindLong(2, snapshots.getOrInsert(cursor.getBlob(2)));
+                }
+                update.bindLong(3, cursor.getLong(0));
+                update.executeUpdateDelete();
+                update.clearBindings();
+            }
+        } finally {
+            SqlUtils.closeCursor(cursor);
+            SqlUtils.closeStatement(update);
+            snapshots.close();
+        }
+        return numRows;
+    }
+
+    // Version 5 tags the events with the client that tracked them
+    protected static void addClientTagColumn(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE tbl_events ADD COLUMN client_tag INTEGER NOT NULL DEFAULT 0");
+    }
+
+    // Version 6 indexes the columns deleteExpiredEvents selects on
+    protected static void addExpiryIndexes(SQLiteDatabase db) {
+        createExpiryIndexes(db);
+    }
+
+    // Used by deleteExpiredEvents, which would otherwise scan the whole table before every page is leased
+    private static void createExpiryIndexes(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS idx_events_timestamp ON tbl_events (timestamp)");
+        db.execSQL("CREATE INDEX IF NOT EXISTS idx_events_retry_count ON tbl_events (retry_count)");
+    }
+
+    // Version 7 stores the events in lanes by priority. Queued events are in the NORMAL lane.
+    protected static void addPriorityColumn(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE tbl_events ADD COLUMN priority INTEGER NOT NULL DEFAULT "
+                + TracksClient.EventPriority.NORMAL.ordinal());
+        createPriorityIndex(db);
+    }
+
+    // Used to lease the events of a lane, and to evict the oldest events of the lowest one
+    private static void createPriorityIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS idx_events_priority ON tbl_events (priority, event_id)");
+    }
+
+    // Version 8 indexes the snapshot ids, which SnapshotTable.deleteOrphans looks up after every delete
+    protected static void addSnapshotIndexes(SQLiteDatabase db) {
+        createSnapshotIndexes(db);
+    }
+
+    private static void createSnapshotIndexes(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS idx_events_user_props_id ON tbl_events (user_props_id)");
+        db.execSQL("CREATE INDEX IF NOT EXISTS idx_events_device_info_id ON tbl_events (device_info_id)");
+    }
+
+    private static void createLeaseIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS idx_events_batch_id ON tbl_events (batch_id)");
     }
 
     protected static void dropTables(SQLiteDatabase db) {
@@ -53,8 +222,13 @@ public class EventTable {
             return 0;
         }
 
-        SQLiteDatabase db = TracksDatabaseHelper.getReadableDb(ctx);
-        return (int) SqlUtils.getRowCount(db, "tbl_events");
+        // Make sure the DB is open, so the count is seeded
+        TracksDatabaseHelper.getDatabase(ctx);
+        return sEventsCount.get();
+    }
+
+    protected static void seedEventsCount(SQLiteDatabase db) {
+        sEventsCount.set((int) SqlUtils.getRowCount(db, "tbl_events"));
     }
 
     public static void insertEvent(Context ctx, Event event) {
@@ -63,50 +237,106 @@ public class EventTable {
             return;
         }
 
+        insertEvents(ctx, Collections.singletonList(event));
+    }
+
+    /**
+     * Inserts the passed events in a single transaction, reusing the same compiled statement for all of them.
+     *
+     * @return the number of events actually inserted.
+     */
+    public static int insertEvents(Context ctx, Collection<Event> events) {
+        if (events == null || events.isEmpty()) {
+            return 0;
+        }
+
         if (ctx == null) {
-            Log.e(TracksDatabaseHelper.LOGTAG, "Cannot insert a null event since the passed context is null. Context is required " +
+            Log.e(TracksDatabaseHelper.LOGTAG, "Cannot insert the events since the passed context is null. Context is required " +
                     "to access the DB.");
-            return;
+            return 0;
         }
 
+        int insertedCount = 0;
+        boolean isCommitted = false;
         SQLiteDatabase db = TracksDatabaseHelper.getWritableDb(ctx);
         db.beginTransaction();
         SQLiteStatement stmt = db.compileStatement("INSERT INTO tbl_events (event_name, user, user_agent, user_type, " +
-                "user_props, device_info, custom_props, timestamp, retry_count) VALUES (?1,?2,?3,?4,?5,?6,?7,?8, ?9)");
+                "user_props_id, device_info_id, custom_props, timestamp, retry_count, client_tag, priority) " +
+                "VALUES (?1,?2,?3,?4,?5,?6,?7,?8,?9,?10,?11)");
+        SnapshotTable.Writer snapshots = new SnapshotTable.Writer(db);
         try {
-            stmt.bindString(1, event.getEventName());
-            stmt.bindString(2, event.getUser());
-            stmt.bindString(3, event.getUserAgent());
-            stmt.bindLong(4, event.getUserType().ordinal());
-
-            if (event.getUserProperties() != null) {
-                stmt.bindString(5, event.getUserProperties().toString());
-            } else {
-                stmt.bindNull(5);
-            }
-
-            if (event.getDeviceInfo() != null) {
-                stmt.bindString(6, event.getDeviceInfo().toString());
-            } else {
-                stmt.bindNull(6);
-            }
-            if (event.getCustomEventProperties() != null) {
-                stmt.bindString(7, event.getCustomEventProperties().toString());
-            } else {
-                stmt.bindNull(7);
+            for (Event event : events) {
+                if (event == null) {
+                    Log.e(TracksDatabaseHelper.LOGTAG, "Cannot insert a null event");
+                    continue;
+                }
+                try {
+                    bindEvent(stmt, event, snapshots);
+                    stmt.executeInsert();
+                    insertedCount++;
+                } catch (IllegalArgumentException e) {
+                    Log.e(TracksDatabaseHelper.LOGTAG, "Cannot insert the current event. Please check the details of the event!", e);
+                } finally {
+                    stmt.clearBindings();
+                }
             }
 
-            stmt.bindLong(8, event.getTimeStamp());
-            stmt.bindLong(9, event.getRetryCount());
-
-            stmt.execute();
-
             db.setTransactionSuccessful();
-        } catch (IllegalArgumentException e) {
-            Log.e(TracksDatabaseHelper.LOGTAG, "Cannot insert the current event. Please check the details of the event!", e);
+            isCommitted = true;
         } finally {
             db.endTransaction();
             SqlUtils.closeStatement(stmt);
+            snapshots.close();
+        }
+        if (isCommitted) {
+            sEventsCount.addAndGet(insertedCount);
+            return insertedCount;
+        }
+        return 0;
+    }
+
+    private static void bindEvent(SQLiteStatement stmt, Event event, SnapshotTable.Writer snapshots) {
+        stmt.bindString(1, event.getEventName());
+        stmt.bindString(2, event.getUser());
+        stmt.bindString(3, event.getUserAgent());
+        stmt.bindLong(4, event.getUserType().ordinal());
+
+        bindSnapshot(stmt, 5, event.getUserProperties(), snapshots);
+        bindSnapshot(stmt, 6, event.getDeviceInfo(), snapshots);
+        bindProperties(stmt, 7, event.getCustomEventProperties());
+
+        stmt.bindLong(8, event.getTimeStamp());
+        stmt.bindLong(9, event.getRetryCount());
+        stmt.bindLong(10, event.getClientTag());
+        stmt.bindLong(11, event.getPriority().ordinal());
+    }
+
+    private static void bindSnapshot(SQLiteStatement stmt, int index, JSONObject properties,
+                                     SnapshotTable.Writer snapshots) {
+        if (properties != null) {
+            stmt.bindLong(index, snapshots.getOrInsert(properties));
+        } else {
+            stmt.bindNull(index);
+        }
+    }
+
+    private static void bindProperties(SQLiteStatement stmt, int index, JSONObject properties) {
+        if (properties != null) {
+            stmt.bindBlob(index, PropertiesCodec.encode(properties));
+        } else {
+            stmt.bindNull(index);
+        }
+    }
+
+    static JSONObject readProperties(Cursor cursor, int index) throws JSONException {
+        switch (cursor.getType(index)) {
+            case Cursor.FIELD_TYPE_NULL:
+                return null;
+            case Cursor.FIELD_TYPE_BLOB:
+                return PropertiesCodec.decode(cursor.getBlob(index));
+            default:
+                // JSON text, written before version 3
+                return new JSONObject(cursor.getString(index));
         }
     }
 
@@ -118,7 +348,7 @@ public class EventTable {
             return null;
         }
 
-        String sql = "SELECT * FROM tbl_events ORDER BY tbl_events.event_id ASC";
+        String sql = SELECT_EVENTS + " ORDER BY tbl_events.event_id ASC";
 
         if (maxEvents > 0) {
             sql += " LIMIT " + Integer.toString(maxEvents);
@@ -129,102 +359,310 @@ public class EventTable {
         Cursor cursor = db.rawQuery(sql, new String[]{});
 
         LinkedList<Event> events = new LinkedList<>();
-        LinkedList<Long> idToDelete = new LinkedList<>();
+        long lastEventId = -1;
+        int numDeleted = 0;
+        boolean isCommitted = false;
 
         try {
-            if (cursor != null && cursor.moveToFirst()) {
-                do {
-                    // mark the row for deletion asap
-                    idToDelete.add(cursor.getLong(cursor.getColumnIndexOrThrow("event_id")));
-
-                    final String eventName = cursor.getString(cursor.getColumnIndexOrThrow("event_name"));
-                    final String user = cursor.getString(cursor.getColumnIndexOrThrow("user"));
-                    final String userAgent;
-                    if (!cursor.isNull(cursor.getColumnIndexOrThrow("user_agent"))){
-                        userAgent = cursor.getString(cursor.getColumnIndexOrThrow("user_agent"));
-                    } else {
-                        userAgent = null;
-                    }
+            EventCursorReader reader = new EventCursorReader(cursor);
+            while (cursor.moveToNext()) {
+                lastEventId = reader.getEventId();
+                Event currentEvent = reader.readEvent();
+                if (currentEvent != null) {
+                    events.add(currentEvent);
+                }
+            }
 
-                    int uTypeCardinal = (int) cursor.getLong(cursor.getColumnIndexOrThrow("user_type"));
-                    TracksClient.NosaraUserType userType = TracksClient.NosaraUserType.values()[uTypeCardinal];
+            // delete selected rows now
+            if (maxEvents <= 0) {
+                // All events in the table are returned. We can safely remove all of them.
+                numDeleted = db.delete("tbl_events", "1", null);
+                SnapshotTable.deleteAll(db);
+            } else {
+                // We need to delete returned events only. They are the first rows in order of id.
+                if (lastEventId != -1) {
+                    numDeleted = db.delete("tbl_events", "event_id <= ?1", new String[]{Long.toString(lastEventId)});
+                    SnapshotTable.deleteOrphans(db);
+                    Log.d(TracksDatabaseHelper.LOGTAG, "Deleted " + numDeleted + " rows from the Events table.");
+                }
+            }
+            db.setTransactionSuccessful();
+            isCommitted = true;
+            return events;
+        } finally {
+            db.endTransaction();
+            SqlUtils.closeCursor(cursor);
+            if (isCommitted) {
+                sEventsCount.addAndGet(-numDeleted);
+            }
+        }
+    }
 
-                    long timestamp = cursor.getLong(cursor.getColumnIndexOrThrow("timestamp"));
 
-                    final String userProps;
-                    if (!cursor.isNull(cursor.getColumnIndexOrThrow("user_props"))){
-                        userProps = cursor.getString(cursor.getColumnIndexOrThrow("user_props"));
-                    } else {
-                        userProps = null;
-                    }
+    /**
+     * Leases the oldest events that are not being sent already, without deleting them, highest priority first.
+     * The leased rows must then be either deleted, once the server acknowledged them, or released.
+     * All the events of a batch have the same priority, and were tracked by the same client: the ones of the first
+     * available event.
+     *
+     * The batch is capped by number of events and by the size of the stored data, which is a good upper bound
+     * of the size of the serialized events in the request. The first event is always returned, whatever its size.
+     */
+    public static EventsBatch leaseEventsBatch(Context ctx, int maxEvents, int maxBytes) {
+        if (ctx == null) {
+            Log.e(TracksDatabaseHelper.LOGTAG, "Cannot load events!  The passed context is null. Context is required " +
+                    "to access the DB.");
+            return EventsBatch.EMPTY;
+        }
 
-                    final String deviceInfo;
-                    if (!cursor.isNull(cursor.getColumnIndexOrThrow("device_info"))){
-                        deviceInfo = cursor.getString(cursor.getColumnIndexOrThrow("device_info"));
-                    } else {
-                        deviceInfo = null;
-                    }
+        final long now = System.currentTimeMillis();
+        // Leases older than this were taken by a request that never completed
+        final String expiredLeaseTimestamp = Long.toString(now - LEASE_TIMEOUT_MS);
+        final String batchId = UUID.randomUUID().toString();
 
-                    final String customProps;
-                    if (!cursor.isNull(cursor.getColumnIndexOrThrow("custom_props"))){
-                        customProps = cursor.getString(cursor.getColumnIndexOrThrow("custom_props"));
-                    } else {
-                        customProps = null;
+        String sql = "SELECT *, (length(event_name) + length(user) + ifnull(length(user_agent), 0)"
+                + " + ifnull(length(user_props_snapshot), 0) + ifnull(length(device_info_snapshot), 0)"
+                + " + ifnull(length(user_props), 0) + ifnull(length(device_info), 0) + ifnull(length(custom_props), 0))"
+                + " AS row_size FROM (" + SELECT_EVENTS + " WHERE (batch_id IS NULL OR leased_at < ?1)"
+                + " AND client_tag = ?3 AND priority = ?4"
+                + " ORDER BY event_id ASC LIMIT ?2) ORDER BY event_id ASC";
+
+        SQLiteDatabase db = TracksDatabaseHelper.getWritableDb(ctx);
+        db.beginTransaction();
+        Cursor cursor = null;
+
+        List<Event> events = new ArrayList<>();
+        long firstEventId = -1;
+        long lastEventId = -1;
+        int clientTag = 0;
+        int priority = 0;
+        int sizeInBytes = 0;
+        try {
+            // The lane of the batch: the highest priority with an available event
+            boolean hasEvents = false;
+            TracksClient.EventPriority[] priorities = TracksClient.EventPriority.values();
+            for (int i = priorities.length - 1; i >= 0 && !hasEvents; i--) {
+                cursor = db.rawQuery(SELECT_LANE_CLIENT_TAG,
+                        new String[]{Integer.toString(priorities[i].ordinal()), expiredLeaseTimestamp});
+                hasEvents = cursor.moveToFirst();
+                if (hasEvents) {
+                    clientTag = cursor.getInt(0);
+                    priority = priorities[i].ordinal();
+                }
+                SqlUtils.closeCursor(cursor);
+                cursor = null;
+            }
+
+            if (hasEvents) {
+                cursor = db.rawQuery(sql, new String[]{expiredLeaseTimestamp, Integer.toString(maxEvents),
+                        Integer.toString(clientTag), Integer.toString(priority)});
+            }
+            if (cursor != null && cursor.moveToFirst()) {
+                EventCursorReader reader = new EventCursorReader(cursor);
+                int rowSizeIndex = cursor.getColumnIndexOrThrow("row_size");
+                do {
+                    int rowSize = cursor.getInt(rowSizeIndex);
+                    if (firstEventId != -1 && sizeInBytes + rowSize > maxBytes) {
+                        // Leave the remaining rows for the next batch
+                        break;
                     }
+                    long eventId = reader.getEventId();
+                    if (firstEventId == -1) {
+                        firstEventId = eventId;
+                    }
+                    lastEventId = eventId;
+                    sizeInBytes += rowSize;
 
-                    try {
-                        Event currentEvent = new Event(eventName, user, userType, userAgent, timestamp);
-                        if (deviceInfo != null) {
-                            currentEvent.setDeviceInfo(new JSONObject(deviceInfo));
-                        }
-                        if (userProps!= null) {
-                            currentEvent.setUserProperties(new JSONObject(userProps));
-                        }
-                        if (customProps != null) {
-                            currentEvent.setCustomProperties(new JSONObject(customProps));
-                        }
+                    Event currentEvent = reader.readEvent();
+                    if (currentEvent != null) {
                         events.add(currentEvent);
-                    } catch (EventNameException e) {
-                        Log.e(TracksDatabaseHelper.LOGTAG, "Cannot load event from the DB!  Name of the event is not correct?!?", e);
-                    } catch (JSONException e) {
-                        Log.e(TracksDatabaseHelper.LOGTAG, "Cannot recreate the event obj from the DB data!", e);
-                    } catch (Exception e) {
-                        Log.e(TracksDatabaseHelper.LOGTAG, "Cannot recreate the event obj from the DB data!", e);
                     }
                 } while (cursor.moveToNext());
             }
+            SqlUtils.closeCursor(cursor);
 
-            // delete selected rows now
-            if (maxEvents <= 0) {
-                // All events in the table are returned. We can safely remove all of them.
-                db.execSQL("DELETE FROM tbl_events");
-            } else {
-                // We need to delete returned events only.
-                if (idToDelete.size() > 0) {
-                    StringBuilder deleteInClause = new StringBuilder();
-                    boolean first = true;
-                    for (Iterator<Long> iterator = idToDelete.iterator(); iterator.hasNext(); ) {
-                        Long currentID = iterator.next();
-                        if (first) {
-                            deleteInClause.append(currentID.toString());
-                            first = false;
-                        } else {
-                            deleteInClause.append(" ,");
-                            deleteInClause.append(currentID.toString());
-                        }
-                    }
-                    int numDeleted = db.delete("tbl_events", "event_id IN (" + deleteInClause.toString() + ")", null);
-                    Log.d(TracksDatabaseHelper.LOGTAG, "Deleted " + numDeleted + " rows from the Events table.");
-                }
+            if (firstEventId != -1) {
+                // Events of other lanes in the same range are left for their own batches
+                db.execSQL("UPDATE tbl_events SET batch_id = ?1, leased_at = ?2 WHERE event_id BETWEEN ?3 AND ?4"
+                                + " AND (batch_id IS NULL OR leased_at < ?5) AND client_tag = ?6 AND priority = ?7",
+                        new Object[]{batchId, now, firstEventId, lastEventId, expiredLeaseTimestamp, clientTag,
+                                priority});
             }
             db.setTransactionSuccessful();
-            return events;
         } finally {
             db.endTransaction();
             SqlUtils.closeCursor(cursor);
         }
+
+        if (firstEventId == -1) {
+            return EventsBatch.EMPTY;
+        }
+        return new EventsBatch(batchId, events, firstEventId, lastEventId, sizeInBytes);
     }
 
+    /**
+     * Deletes the oldest events of the lowest priority that are not being sent, to make room for newer ones in a
+     * full queue. Events of a higher priority than maxPriority are kept.
+     *
+     * @return the number of deleted events.
+     */
+    public static int evictOldestEvents(Context ctx, int count, TracksClient.EventPriority maxPriority) {
+        if (ctx == null) {
+            Log.e(TracksDatabaseHelper.LOGTAG, "Cannot delete events!  The passed context is null. Context is required " +
+                    "to access the DB.");
+            return 0;
+        }
+        if (count <= 0) {
+            return 0;
+        }
+
+        int numDeleted = deleteEventsAndSnapshots(TracksDatabaseHelper.getWritableDb(ctx),
+                "event_id IN (" + SELECT_EVICTED_EVENT_IDS + ")",
+                new String[]{Integer.toString(maxPriority.ordinal()), Integer.toString(count)});
+        if (numDeleted > 0) {
+            Log.w(TracksDatabaseHelper.LOGTAG, "The events queue is full. Deleted the " + numDeleted + " oldest events.");
+        }
+        return numDeleted;
+    }
+
+    /**
+     * Deletes the events that are not being sent and should not be sent anymore: the ones older than maxAgeMs,
+     * or timestamped that far in the future, and the ones that already failed to be sent maxRetryCount times.
+     *
+     * @return the number of deleted events.
+     */
+    public static int deleteExpiredEvents(Context ctx, long maxAgeMs, int maxRetryCount) {
+        if (ctx == null) {
+            Log.e(TracksDatabaseHelper.LOGTAG, "Cannot delete events!  The passed context is null. Context is required " +
+                    "to access the DB.");
+            return 0;
+        }
+
+        long now = System.currentTimeMillis();
+        int numDeleted = deleteEventsAndSnapshots(TracksDatabaseHelper.getWritableDb(ctx),
+                EXPIRED_EVENTS_SELECTION, new String[]{Long.toString(now - maxAgeMs), Long.toString(now + maxAgeMs),
+                        Integer.toString(maxRetryCount)});
+        if (numDeleted > 0) {
+            Log.w(TracksDatabaseHelper.LOGTAG, "Deleted " + numDeleted + " expired events.");
+        }
+        return numDeleted;
+    }
+
+    private static int deleteEventsAndSnapshots(SQLiteDatabase db, String whereClause, String[] whereArgs) {
+        int numDeleted;
+        db.beginTransaction();
+        try {
+            numDeleted = db.delete("tbl_events", whereClause, whereArgs);
+            if (numDeleted > 0) {
+                SnapshotTable.deleteOrphans(db);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        sEventsCount.addAndGet(-numDeleted);
+        return numDeleted;
+    }
+
+    /**
+     * Deletes the rows leased to the passed batch, once the server acknowledged them.
+     */
+    public static void deleteEventsBatch(Context ctx, EventsBatch batch) {
+        if (ctx == null) {
+            Log.e(TracksDatabaseHelper.LOGTAG, "Cannot delete events!  The passed context is null. Context is required " +
+                    "to access the DB.");
+            return;
+        }
+        if (batch == null || batch.isEmpty()) {
+            return;
+        }
+
+        SQLiteDatabase db = TracksDatabaseHelper.getWritableDb(ctx);
+        int numDeleted;
+        db.beginTransaction();
+        try {
+            numDeleted = db.delete("tbl_events", "batch_id = ?1", new String[]{batch.getBatchId()});
+            SnapshotTable.deleteOrphans(db);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        sEventsCount.addAndGet(-numDeleted);
+        Log.d(TracksDatabaseHelper.LOGTAG, "Deleted " + numDeleted + " rows from the Events table.");
+    }
+
+    /**
+     * Makes the rows leased to the passed batch available again, after it failed to be sent.
+     */
+    public static void releaseEventsBatch(Context ctx, EventsBatch batch) {
+        releaseEventsBatch(ctx, batch, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Makes the rows leased to the passed batch available again, after it failed to be sent.
+     * Rows that already failed maxRetryCount times are deleted instead.
+     *
+     * @return the number of deleted rows.
+     */
+    public static int releaseEventsBatch(Context ctx, EventsBatch batch, int maxRetryCount) {
+        if (ctx == null) {
+            Log.e(TracksDatabaseHelper.LOGTAG, "Cannot update events!  The passed context is null. Context is required " +
+                    "to access the DB.");
+            return 0;
+        }
+        if (batch == null || batch.isEmpty()) {
+            return 0;
+        }
+
+        SQLiteDatabase db = TracksDatabaseHelper.getWritableDb(ctx);
+        final String[] batchArgs = new String[]{batch.getBatchId()};
+        int numDeleted = 0;
+        db.beginTransaction();
+        try {
+            db.execSQL("UPDATE tbl_events SET retry_count = retry_count + 1 WHERE batch_id = ?1", batchArgs);
+            numDeleted = db.delete("tbl_events", "batch_id = ?1 AND retry_count >= ?2",
+                    new String[]{batch.getBatchId(), Integer.toString(maxRetryCount)});
+            if (numDeleted > 0) {
+                SnapshotTable.deleteOrphans(db);
+            }
+            db.execSQL("UPDATE tbl_events SET batch_id = NULL, leased_at = NULL WHERE batch_id = ?1", batchArgs);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (numDeleted > 0) {
+            sEventsCount.addAndGet(-numDeleted);
+            Log.w(TracksDatabaseHelper.LOGTAG, "Deleted " + numDeleted + " events that failed to be sent "
+                    + maxRetryCount + " times.");
+        }
+        return numDeleted;
+    }
+
+    /**
+     * Makes the rows leased to the passed batch available again, without counting a failed attempt:
+     * the batch was never sent.
+     */
+    public static void abandonEventsBatch(Context ctx, EventsBatch batch) {
+        if (ctx == null) {
+            Log.e(TracksDatabaseHelper.LOGTAG, "Cannot update events!  The passed context is null. Context is required " +
+                    "to access the DB.");
+            return;
+        }
+        if (batch == null || batch.isEmpty()) {
+            return;
+        }
+
+        SQLiteDatabase db = TracksDatabaseHelper.getWritableDb(ctx);
+        db.execSQL("UPDATE tbl_events SET batch_id = NULL, leased_at = NULL WHERE batch_id = ?1",
+                new String[]{batch.getBatchId()});
+    }
+
+    /*
+     * Called when the DB is opened: nothing can be in flight yet, so leases left by a previous process are released.
+     */
+    protected static void releaseAllLeases(SQLiteDatabase db) {
+        db.execSQL("UPDATE tbl_events SET batch_id = NULL, leased_at = NULL WHERE batch_id IS NOT NULL");
+    }
 
     public static void purgeAll(Context ctx) {
         if (ctx == null) {
@@ -235,12 +673,18 @@ public class EventTable {
 
         SQLiteDatabase db = TracksDatabaseHelper.getWritableDb(ctx);
         db.beginTransaction();
+        boolean isCommitted = false;
         try {
             // first delete all recommended tags
             db.execSQL("DELETE FROM tbl_events");
+            SnapshotTable.deleteAll(db);
             db.setTransactionSuccessful();
+            isCommitted = true;
         } finally {
             db.endTransaction();
+            if (isCommitted) {
+                sEventsCount.set(0);
+            }
         }
     }
 
@@ -0,0 +1,56 @@
+package com.automattic.android.tracks.datasets;
+
+import com.automattic.android.tracks.Event;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A page of rows leased from the events table.
+ *
+ * The events are kept in the DB, marked with the batch id, until the batch is either deleted or released.
+ */
+public class EventsBatch {
+    static final EventsBatch EMPTY = new EventsBatch(null, Collections.<Event>emptyList(), -1, -1, 0);
+
+    private final String mBatchId;
+    private final List<Event> mEvents;
+    private final long mFirstEventId;
+    private final long mLastEventId;
+    private final int mSizeInBytes;
+
+    EventsBatch(String batchId, List<Event> events, long firstEventId, long lastEventId, int sizeInBytes) {
+        mBatchId = batchId;
+        mEvents = events;
+        mFirstEventId = firstEventId;
+        mLastEventId = lastEventId;
+        mSizeInBytes = sizeInBytes;
+    }
+
+    // Id of the lease taken on the rows of the batch
+    public String getBatchId() {
+        return mBatchId;
+    }
+
+    // Events that could be decoded. Rows that couldn't be are still leased to the batch.
+    public List<Event> getEvents() {
+        return mEvents;
+    }
+
+    public long getFirstEventId() {
+        return mFirstEventId;
+    }
+
+    public long getLastEventId() {
+        return mLastEventId;
+    }
+
+    // Size of the data stored for the events of the batch
+    public int getSizeInBytes() {
+        return mSizeInBytes;
+    }
+
+    public boolean isEmpty() {
+        return mFirstEventId == -1;
+    }
+}
@@ -0,0 +1,33 @@
+package com.automattic.android.tracks.datasets;
+
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Facts about tracks.db itself, stored as key/value pairs.
+ */
+/* package */ class MetadataTable {
+    // Version of the format the rows are in. It's behind the DB version until the rows are migrated.
+    private static final String KEY_ROWS_VERSION = "rows_version";
+
+    static void createTables(SQLiteDatabase db, int rowsVersion) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS tbl_metadata ("
+                + " key             TEXT PRIMARY KEY,"
+                + " value           INTEGER"
+                + ")");
+        setRowsVersion(db, rowsVersion);
+    }
+
+    static void dropTables(SQLiteDatabase db) {
+        db.execSQL("DROP TABLE IF EXISTS tbl_metadata");
+    }
+
+    static int getRowsVersion(SQLiteDatabase db) {
+        return SqlUtils.intForQuery(db, "SELECT value FROM tbl_metadata WHERE key = ?1",
+                new String[]{KEY_ROWS_VERSION});
+    }
+
+    static void setRowsVersion(SQLiteDatabase db, int rowsVersion) {
+        db.execSQL("INSERT OR REPLACE INTO tbl_metadata (key, value) VALUES (?1, ?2)",
+                new Object[]{KEY_ROWS_VERSION, rowsVersion});
+    }
+}
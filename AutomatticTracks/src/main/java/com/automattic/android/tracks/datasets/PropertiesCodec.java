@@ -0,0 +1,177 @@
+package com.automattic.android.tracks.datasets;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+
+/**
+ * Compact binary encoding of the properties of an event, stored in the events table instead of their JSON text.
+ *
+ * Format, version 1:
+ * - 1 byte: version
+ * - varint: number of properties
+ * - for each property: the key as a length-prefixed UTF-8 string, a 1 byte type, then the value.
+ *
+ * Strings are length-prefixed UTF-8, and integers are zigzag varints. Other numbers and nested objects are stored
+ * as their JSON text, so that decoding them gives back exactly what parsing the JSON of the whole object did.
+ */
+/* package */ final class PropertiesCodec {
+    static final int VERSION = 1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int TYPE_STRING = 0;
+    private static final int TYPE_TRUE = 1;
+    private static final int TYPE_FALSE = 2;
+    private static final int TYPE_NULL = 3;
+    private static final int TYPE_INTEGER = 4;
+    private static final int TYPE_JSON = 5;
+
+    private PropertiesCodec() {
+    }
+
+    static byte[] encode(JSONObject properties) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+        out.write(VERSION);
+        writeVarint(out, properties.length());
+        Iterator<String> keys = properties.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            writeString(out, key);
+            writeValue(out, properties.opt(key));
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @throws JSONException if the data is not a valid encoding.
+     */
+    static JSONObject decode(byte[] data) throws JSONException {
+        Reader reader = new Reader(data);
+        int version = reader.readByte();
+        if (version != VERSION) {
+            throw new JSONException("Unknown properties encoding version: " + version);
+        }
+        long count = reader.readVarint();
+        JSONObject properties = new JSONObject();
+        for (long i = 0; i < count; i++) {
+            String key = reader.readString();
+            properties.put(key, reader.readValue());
+        }
+        return properties;
+    }
+
+    private static void writeValue(ByteArrayOutputStream out, Object value) {
+        if (value == null || value == JSONObject.NULL) {
+            out.write(TYPE_NULL);
+        } else if (value instanceof String) {
+            out.write(TYPE_STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof Boolean) {
+            out.write((Boolean) value ? TYPE_TRUE : TYPE_FALSE);
+        } else if (value instanceof Integer || value instanceof Long
+                || value instanceof Short || value instanceof Byte) {
+            out.write(TYPE_INTEGER);
+            long number = ((Number) value).longValue();
+            writeVarint(out, (number << 1) ^ (number >> 63));
+        } else if (value instanceof Number) {
+            out.write(TYPE_JSON);
+            try {
+                writeString(out, JSONObject.numberToString((Number) value));
+            } catch (JSONException e) {
+                // Not a finite number, JSONObject never holds one
+                throw new IllegalArgumentException(e);
+            }
+        } else if (value instanceof JSONObject || value instanceof JSONArray) {
+            out.write(TYPE_JSON);
+            writeString(out, value.toString());
+        } else {
+            // Any other object is written as a string in JSON
+            out.write(TYPE_STRING);
+            writeString(out, value.toString());
+        }
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        byte[] bytes = value.getBytes(UTF_8);
+        writeVarint(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static final class Reader {
+        private final byte[] mData;
+        private int mPosition = 0;
+
+        Reader(byte[] data) {
+            mData = data;
+        }
+
+        int readByte() throws JSONException {
+            if (mPosition >= mData.length) {
+                throw new JSONException("Truncated properties data");
+            }
+            return mData[mPosition++] & 0xFF;
+        }
+
+        long readVarint() throws JSONException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new JSONException("Malformed varint in properties data");
+        }
+
+        String readString() throws JSONException {
+            long length = readVarint();
+            if (length < 0 || length > mData.length - mPosition) {
+                throw new JSONException("Truncated properties data");
+            }
+            String value = new String(mData, mPosition, (int) length, UTF_8);
+            mPosition += (int) length;
+            return value;
+        }
+
+        Object readValue() throws JSONException {
+            int type = readByte();
+            switch (type) {
+                case TYPE_STRING:
+                    return readString();
+                case TYPE_TRUE:
+                    return Boolean.TRUE;
+                case TYPE_FALSE:
+                    return Boolean.FALSE;
+                case TYPE_NULL:
+                    return JSONObject.NULL;
+                case TYPE_INTEGER:
+                    long zigzag = readVarint();
+                    long number = (zigzag >>> 1) ^ -(zigzag & 1);
+                    // Same as parsing the JSON: Integer when it fits
+                    if (number == (int) number) {
+                        return (int) number;
+                    }
+                    return number;
+                case TYPE_JSON:
+                    return new JSONTokener(readString()).nextValue();
+                default:
+                    throw new JSONException("Unknown property type: " + type);
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.automattic.android.tracks.datasets;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import org.json.JSONObject;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Content-addressed store of the user properties and device info attached to the events.
+ *
+ * They are the same for thousands of events in a row, so each distinct snapshot is stored once, and the events
+ * only store its id. Snapshots no longer referenced by any event are deleted by {@link #deleteOrphans}.
+ */
+public class SnapshotTable {
+    protected static void createTables(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS tbl_snapshots ("
+                + " snapshot_id     INTEGER PRIMARY KEY ASC,"
+                + " hash            BLOB NOT NULL UNIQUE,"  // SHA-1 of the data
+                + " data            BLOB NOT NULL"  // properties encoded with PropertiesCodec
+                + ")");
+    }
+
+    protected static void dropTables(SQLiteDatabase db) {
+        db.execSQL("DROP TABLE IF EXISTS tbl_snapshots");
+    }
+
+    // Snapshots are few: each one is looked up in the indexes of tbl_events, rather than listing the ids of all
+    // the events
+    static final String ORPHANS_SELECTION = "NOT EXISTS (SELECT 1 FROM tbl_events WHERE user_props_id = snapshot_id)"
+            + " AND NOT EXISTS (SELECT 1 FROM tbl_events WHERE device_info_id = snapshot_id)";
+
+    /**
+     * Deletes the snapshots not referenced by any event. Must be called after events are deleted.
+     *
+     * @return the number of deleted snapshots.
+     */
+    protected static int deleteOrphans(SQLiteDatabase db) {
+        return db.delete("tbl_snapshots", ORPHANS_SELECTION, null);
+    }
+
+    protected static void deleteAll(SQLiteDatabase db) {
+        db.execSQL("DELETE FROM tbl_snapshots");
+    }
+
+    /**
+     * Finds or stores the snapshots of the events inserted in one transaction.
+     * Must be closed once the transaction ends.
+     */
+    static class Writer {
+        private final SQLiteStatement mSelectStatement;
+        private final SQLiteStatement mInsertStatement;
+        private final MessageDigest mDigest;
+        // The same properties object is usually attached to many events
+        private final Map<JSONObject, Long> mIdsByObject = new IdentityHashMap<>();
+        private final Map<ByteBuffer, Long> mIdsByHash = new HashMap<>();
+
+        Writer(SQLiteDatabase db) {
+            mSelectStatement = db.compileStatement("SELECT snapshot_id FROM tbl_snapshots WHERE hash = ?1");
+            mInsertStatement = db.compileStatement("INSERT INTO tbl_snapshots (hash, data) VALUES (?1, ?2)");
+            mDigest = newDigest();
+        }
+
+        long getOrInsert(JSONObject properties) {
+            Long snapshotId = mIdsByObject.get(properties);
+            if (snapshotId == null) {
+                snapshotId = getOrInsert(PropertiesCodec.encode(properties));
+                mIdsByObject.put(properties, snapshotId);
+            }
+            return snapshotId;
+        }
+
+        long getOrInsert(byte[] data) {
+            byte[] hash = mDigest.digest(data);
+            ByteBuffer hashKey = ByteBuffer.wrap(hash);
+            Long snapshotId = mIdsByHash.get(hashKey);
+            if (snapshotId != null) {
+                return snapshotId;
+            }
+
+            try {
+                mSelectStatement.bindBlob(1, hash);
+                snapshotId = mSelectStatement.simpleQueryForLong();
+            } catch (SQLiteDoneException e) {
+                mInsertStatement.bindBlob(1, hash);
+                mInsertStatement.bindBlob(2, data);
+                snapshotId = mInsertStatement.executeInsert();
+                mInsertStatement.clearBindings();
+            } finally {
+                mSelectStatement.clearBindings();
+            }
+            mIdsByHash.put(hashKey, snapshotId);
+            return snapshotId;
+        }
+
+        void close() {
+            SqlUtils.closeStatement(mSelectStatement);
+            SqlUtils.closeStatement(mInsertStatement);
+        }
+
+        private static MessageDigest newDigest() {
+            try {
+                return MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e) {
+                // Every Android device provides SHA-1
+                Log.e(TracksDatabaseHelper.LOGTAG, "SHA-1 is not available", e);
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
@@ -17,7 +17,7 @@ import java.io.OutputStream;
 public class TracksDatabaseHelper extends SQLiteOpenHelper {
     public static final String LOGTAG = "NosaraDB";
     protected static final String DB_NAME = "tracks.db";
-    private static final int DB_VERSION = 1;
+    private static final int DB_VERSION = DatabaseMigrations.LATEST_VERSION;
 
     /*
 	 *  database singleton
@@ -42,6 +42,8 @@ public class TracksDatabaseHelper extends SQLiteOpenHelper {
     private TracksDatabaseHelper(Context context) {
         super(context, DB_NAME, null, DB_VERSION);
         mContext = context;
+        // One connection writes, while reads get their own connections and never wait for its transactions
+        setWriteAheadLoggingEnabled(true);
     }
 
 
@@ -52,9 +54,52 @@ public class TracksDatabaseHelper extends SQLiteOpenHelper {
         return getDatabase(ctx).getWritableDatabase();
     }
 
+    /**
+     * Rewrites at most maxRows rows left in a previous format by the last upgrades, in one transaction.
+     * Call it again until it returns 0: the upgrade done when the DB is opened only changes the schema.
+     * Once all the rows are migrated, it's recorded in the DB, and the rows are not checked anymore.
+     *
+     * @return the number of rows rewritten.
+     */
+    public static int migrateRows(Context ctx, int maxRows) {
+        SQLiteDatabase db = getWritableDb(ctx);
+        int version = db.getVersion();
+        int rowsVersion = MetadataTable.getRowsVersion(db);
+        if (rowsVersion >= version) {
+            return 0;
+        }
+        int numRows;
+        db.beginTransaction();
+        try {
+            numRows = DatabaseMigrations.migrateRows(db, rowsVersion, version, maxRows);
+            if (numRows > 0) {
+                // Rows that could not be read are deleted
+                EventTable.seedEventsCount(db);
+            } else {
+                MetadataTable.setRowsVersion(db, version);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return numRows;
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        super.onConfigure(db);
+        // With the write-ahead log, the DB is only synced at checkpoints. A power loss can lose the last
+        // events stored, but never corrupts the DB.
+        db.execSQL("PRAGMA synchronous = NORMAL");
+    }
+
     @Override
     public void onOpen(SQLiteDatabase db) {
         super.onOpen(db);
+        if (!db.isReadOnly()) {
+            EventTable.releaseAllLeases(db);
+        }
+        EventTable.seedEventsCount(db);
         // Used during development to copy database to external storage and read its content.
         // copyDatabase(db);
     }
@@ -80,25 +125,30 @@ public class TracksDatabaseHelper extends SQLiteOpenHelper {
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // for now just reset the db when upgrading, future versions may want to avoid this
-        // and modify table structures, etc., on upgrade while preserving data
+        // Modify table structures step by step, preserving the queued events. Rows are migrated later by migrateRows.
         Log.i(LOGTAG, "Upgrading database from version " + oldVersion + " to version " + newVersion);
-        reset(db);
+        DatabaseMigrations.migrateSchema(db, oldVersion, newVersion);
     }
 
     @Override
     public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
         // IMPORTANT: do NOT call super() here - doing so throws a SQLiteException
+        // The schema of the newer version is unknown here, so its events cannot be kept
         Log.w(LOGTAG, "Downgrading database from version " + oldVersion + " to version " + newVersion);
         reset(db);
     }
 
     private void createAllTables(SQLiteDatabase db) {
        EventTable.createTables(db);
+       SnapshotTable.createTables(db);
+       // A new DB has no rows to migrate
+       MetadataTable.createTables(db, DB_VERSION);
     }
 
     private void dropAllTables(SQLiteDatabase db) {
         EventTable.dropTables(db);
+        SnapshotTable.dropTables(db);
+        MetadataTable.dropTables(db);
     }
 
     /*
@@ -0,0 +1,14 @@
+package com.automattic.android.tracks
+
+import java.util.concurrent.TimeUnit
+
+// Shared by the *Benchmark classes. They print rough numbers to the standard output, only meaningful when compared
+// with each other on the same machine, so they're left out of the unit tests unless Gradle is run with
+// -PrunBenchmarks.
+
+fun eventsPerSecond(eventsCount: Int, elapsedNs: Long) =
+    eventsCount * TimeUnit.SECONDS.toNanos(1) / elapsedNs.coerceAtLeast(1)
+
+fun reportThroughput(label: String, eventsCount: Int, elapsedNs: Long) {
+    println("$label: ${TimeUnit.NANOSECONDS.toMillis(elapsedNs)} ms, ${eventsPerSecond(eventsCount, elapsedNs)} events/s")
+}
@@ -0,0 +1,53 @@
+package com.automattic.android.tracks
+
+import android.app.Application
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.RuntimeEnvironment
+import java.util.concurrent.TimeUnit
+import kotlin.system.measureNanoTime
+
+/**
+ * Time the creation of the device information adds to the app startup.
+ */
+@RunWith(RobolectricTestRunner::class)
+class DeviceInformationBenchmark {
+
+    private val application: Application = RuntimeEnvironment.getApplication()
+
+    @Test
+    fun `lazy vs eager creation of the device information`() {
+        // Warm up the classes and the system services
+        repeat(WARM_UP_COUNT) { DeviceInformation(application).apply { ensureInitialized() }.release() }
+
+        val instances = ArrayList<DeviceInformation>(INSTANCES_COUNT)
+        val lazyNs = measureNanoTime {
+            repeat(INSTANCES_COUNT) { instances.add(DeviceInformation(application)) }
+        }
+        // What the constructor used to do: query the device before returning
+        val eagerNs = measureNanoTime {
+            repeat(INSTANCES_COUNT) { DeviceInformation(application).apply { ensureInitialized() }.release() }
+        }
+        // Work moved to the pipeline thread, on first use
+        val firstUseNs = measureNanoTime {
+            instances.forEach { it.immutableDeviceInfo }
+        }
+        instances.forEach { it.release() }
+
+        report("lazy constructor (startup)", lazyNs)
+        report("eager constructor (startup)", eagerNs)
+        report("first use of the lazy instances (pipeline thread)", firstUseNs)
+        assertThat(lazyNs).isLessThan(eagerNs)
+    }
+
+    private fun report(label: String, elapsedNs: Long) {
+        println("$label: ${TimeUnit.NANOSECONDS.toMicros(elapsedNs / INSTANCES_COUNT)} us per instance")
+    }
+
+    private companion object {
+        const val WARM_UP_COUNT = 5
+        const val INSTANCES_COUNT = 50
+    }
+}
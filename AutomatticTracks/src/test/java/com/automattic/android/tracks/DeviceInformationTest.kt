@@ -0,0 +1,125 @@
+package com.automattic.android.tracks
+
+import android.Manifest
+import android.app.Application
+import android.bluetooth.BluetoothAdapter
+import android.content.Context
+import android.content.Intent
+import android.content.res.Configuration
+import android.net.ConnectivityManager
+import android.os.Looper
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.RuntimeEnvironment
+import org.robolectric.Shadows.shadowOf
+import org.robolectric.shadows.ShadowNetwork
+import org.robolectric.shadows.ShadowSystemClock
+import java.time.Duration
+
+@RunWith(RobolectricTestRunner::class)
+class DeviceInformationTest {
+
+    private val application: Application = RuntimeEnvironment.getApplication()
+    private lateinit var deviceInformation: DeviceInformation
+
+    @Before
+    fun setUp() {
+        shadowOf(application).grantPermissions(Manifest.permission.ACCESS_NETWORK_STATE)
+        deviceInformation = DeviceInformation(application)
+    }
+
+    @After
+    fun tearDown() {
+        deviceInformation.release()
+    }
+
+    @Test
+    fun `device is not queried until the device info is needed`() {
+        val connectivityManager = application.getSystemService(Context.CONNECTIVITY_SERVICE) as ConnectivityManager
+        assertThat(shadowOf(connectivityManager).networkCallbacks).isEmpty()
+        assertThat(deviceInformation.mutableDeviceInfoRebuildCount).isEqualTo(0)
+
+        assertThat(deviceInformation.immutableDeviceInfo.getString("os")).isEqualTo("Android")
+        assertThat(shadowOf(connectivityManager).networkCallbacks).hasSize(1)
+    }
+
+    @Test
+    fun `release before first use does not listen to system changes`() {
+        val connectivityManager = application.getSystemService(Context.CONNECTIVITY_SERVICE) as ConnectivityManager
+
+        deviceInformation.release()
+        deviceInformation.mutableDeviceInfo
+
+        assertThat(shadowOf(connectivityManager).networkCallbacks).isEmpty()
+    }
+
+    @Test
+    fun `mutable device info is built once while nothing changes`() {
+        val first = deviceInformation.mutableDeviceInfo
+        val second = deviceInformation.mutableDeviceInfo
+
+        assertThat(second).isSameAs(first)
+        assertThat(first.has("device_orientation")).isTrue()
+        assertThat(deviceInformation.mutableDeviceInfoRebuildCount).isEqualTo(1)
+    }
+
+    @Test
+    fun `mutable device info is rebuilt once its TTL expires`() {
+        val first = deviceInformation.mutableDeviceInfo
+
+        ShadowSystemClock.advanceBy(Duration.ofMillis(DeviceInformation.MUTABLE_DEVICE_INFO_TTL_MS - 1))
+        assertThat(deviceInformation.mutableDeviceInfo).isSameAs(first)
+
+        ShadowSystemClock.advanceBy(Duration.ofMillis(1))
+        assertThat(deviceInformation.mutableDeviceInfo).isNotSameAs(first)
+        assertThat(deviceInformation.mutableDeviceInfoRebuildCount).isEqualTo(2)
+    }
+
+    @Test
+    fun `bluetooth state change invalidates mutable device info`() {
+        val first = deviceInformation.mutableDeviceInfo
+
+        application.sendBroadcast(Intent(BluetoothAdapter.ACTION_STATE_CHANGED))
+        shadowOf(Looper.getMainLooper()).idle()
+
+        assertThat(deviceInformation.mutableDeviceInfo).isNotSameAs(first)
+        assertThat(deviceInformation.mutableDeviceInfoRebuildCount).isEqualTo(2)
+    }
+
+    @Test
+    fun `configuration change invalidates mutable device info`() {
+        val first = deviceInformation.mutableDeviceInfo
+
+        application.onConfigurationChanged(Configuration(application.resources.configuration))
+
+        assertThat(deviceInformation.mutableDeviceInfo).isNotSameAs(first)
+    }
+
+    @Test
+    fun `network change invalidates mutable device info`() {
+        val first = deviceInformation.mutableDeviceInfo
+        val connectivityManager = application.getSystemService(Context.CONNECTIVITY_SERVICE) as ConnectivityManager
+        val callbacks = shadowOf(connectivityManager).networkCallbacks
+        assertThat(callbacks).hasSize(1)
+
+        callbacks.forEach { it.onAvailable(ShadowNetwork.newInstance(1)) }
+
+        assertThat(deviceInformation.mutableDeviceInfo).isNotSameAs(first)
+    }
+
+    @Test
+    fun `release stops listening to system changes`() {
+        val connectivityManager = application.getSystemService(Context.CONNECTIVITY_SERVICE) as ConnectivityManager
+
+        deviceInformation.release()
+
+        assertThat(shadowOf(connectivityManager).networkCallbacks).isEmpty()
+        val first = deviceInformation.mutableDeviceInfo
+        application.onConfigurationChanged(Configuration(application.resources.configuration))
+        assertThat(deviceInformation.mutableDeviceInfo).isSameAs(first)
+    }
+}
@@ -0,0 +1,125 @@
+package com.automattic.android.tracks
+
+import android.app.Application
+import android.content.Context
+import android.net.ConnectivityManager
+import com.automattic.android.tracks.datasets.EventTable
+import com.automattic.android.tracks.datasets.TracksDatabaseHelper
+import com.automattic.android.tracks.fakes.testEvent
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.RuntimeEnvironment
+import org.robolectric.Shadows.shadowOf
+import java.io.ByteArrayOutputStream
+import java.net.HttpURLConnection
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.concurrent.thread
+import kotlin.system.measureNanoTime
+
+/**
+ * Throughput of the events store while threads track events: how fast the tracked events are stored, and how fast
+ * they are sent.
+ */
+@RunWith(RobolectricTestRunner::class)
+class EventsPipelineBenchmark {
+
+    private val context: Application = RuntimeEnvironment.getApplication()
+    private val connectivityManager = context.getSystemService(Context.CONNECTIVITY_SERVICE) as ConnectivityManager
+
+    @Test
+    fun `insert and drain throughput with a write-ahead log vs a rollback journal`() {
+        val db = TracksDatabaseHelper.getWritableDb(context)
+        // Warm up
+        runPipeline()
+
+        val walResults = runPipeline()
+        db.disableWriteAheadLogging()
+        val rollbackJournalResults = try {
+            runPipeline()
+        } finally {
+            db.enableWriteAheadLogging()
+            // Changing the journal mode resets the settings of the connections
+            TracksDatabaseHelper.getDatabase(context).onConfigure(db)
+        }
+
+        report("write-ahead log", walResults)
+        report("rollback journal", rollbackJournalResults)
+        assertThat(walResults.first).isPositive
+    }
+
+    // Returns how long it took to store the tracked events, then to send as many while more are tracked
+    private fun runPipeline(): Pair<Long, Long> {
+        EventTable.purgeAll(context)
+        val transport = CountingUploadTransport()
+        val pipeline = EventsPipeline(context, DeviceInformation(context), ENDPOINT_URL, transport)
+        // Producers wait for the pipeline rather than dropping events
+        pipeline.setOverflowPolicy(TracksClient.IngestOverflowPolicy.BLOCK_WITH_TIMEOUT, TimeUnit.SECONDS.toMillis(30))
+        pipeline.start()
+        try {
+            // Insert: nothing is sent without network
+            val networkInfo = connectivityManager.activeNetworkInfo
+            shadowOf(connectivityManager).setActiveNetworkInfo(null)
+            val insertNs = measureNanoTime {
+                trackConcurrently(pipeline)
+                assertThat(pipeline.awaitIdle(30, TimeUnit.SECONDS)).isTrue
+            }
+            assertThat(EventTable.getEventsCount(context)).isEqualTo(EVENTS_COUNT)
+            shadowOf(connectivityManager).setActiveNetworkInfo(networkInfo)
+
+            // Drain: the stored events are sent while threads keep tracking events
+            val drainNs = measureNanoTime {
+                trackConcurrently(pipeline)
+                val deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30)
+                while (transport.sentEventsCount.get() < 2 * EVENTS_COUNT && System.nanoTime() < deadline) {
+                    pipeline.flush().get(30, TimeUnit.SECONDS)
+                }
+            }
+            assertThat(transport.sentEventsCount.get()).isEqualTo(2 * EVENTS_COUNT)
+            return Pair(insertNs, drainNs)
+        } finally {
+            pipeline.shutdown()
+        }
+    }
+
+    private fun trackConcurrently(pipeline: EventsPipeline) {
+        val done = CountDownLatch(PRODUCERS_COUNT)
+        repeat(PRODUCERS_COUNT) { producer ->
+            thread {
+                repeat(EVENTS_PER_PRODUCER) { pipeline.enqueue(testEvent(name = "test_event_${producer}_$it")) }
+                done.countDown()
+            }
+        }
+        done.await()
+    }
+
+    private fun report(label: String, results: Pair<Long, Long>) {
+        val (insertNs, drainNs) = results
+        println("$label: $EVENTS_COUNT events tracked by $PRODUCERS_COUNT threads and stored in " +
+                "${TimeUnit.NANOSECONDS.toMillis(insertNs)} ms (${eventsPerSecond(EVENTS_COUNT, insertNs)} events/s), " +
+                "${2 * EVENTS_COUNT} events sent while as many were tracked in " +
+                "${TimeUnit.NANOSECONDS.toMillis(drainNs)} ms (${eventsPerSecond(2 * EVENTS_COUNT, drainNs)} events/s)")
+    }
+
+    private class CountingUploadTransport : UploadTransport {
+        val sentEventsCount = AtomicInteger()
+
+        override fun post(url: String, userAgent: String, body: UploadTransport.Body, isGzipEnabled: Boolean): UploadResponse {
+            val out = ByteArrayOutputStream()
+            body.writeTo(out)
+            sentEventsCount.addAndGet(EVENT_NAME_KEY.findAll(out.toString("UTF-8")).count())
+            return UploadResponse(HttpURLConnection.HTTP_OK, 0L)
+        }
+    }
+
+    private companion object {
+        const val ENDPOINT_URL = "https://example.com/tracks/record"
+        const val PRODUCERS_COUNT = 4
+        const val EVENTS_PER_PRODUCER = 1_000
+        const val EVENTS_COUNT = PRODUCERS_COUNT * EVENTS_PER_PRODUCER
+        val EVENT_NAME_KEY = Regex("\"_en\"")
+    }
+}
@@ -0,0 +1,477 @@
+package com.automattic.android.tracks
+
+import android.app.Application
+import android.content.ComponentCallbacks2
+import android.content.Context
+import android.net.ConnectivityManager
+import com.automattic.android.tracks.datasets.EventTable
+import com.automattic.android.tracks.datasets.SqlUtils
+import com.automattic.android.tracks.datasets.TracksDatabaseHelper
+import com.automattic.android.tracks.fakes.testEvent
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.RuntimeEnvironment
+import org.robolectric.Shadows.shadowOf
+import java.io.ByteArrayOutputStream
+import java.net.HttpURLConnection
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+@RunWith(RobolectricTestRunner::class)
+class EventsPipelineTest {
+
+    private val context: Application = RuntimeEnvironment.getApplication()
+    private val transport = RecordingUploadTransport()
+    private lateinit var pipeline: EventsPipeline
+
+    @Before
+    fun setUp() {
+        EventTable.purgeAll(context)
+        pipeline = EventsPipeline(context, DeviceInformation(context), ENDPOINT_URL, transport)
+        pipeline.start()
+    }
+
+    @After
+    fun tearDown() {
+        pipeline.shutdown()
+    }
+
+    @Test
+    fun `no wakeup is scheduled while no event is pending`() {
+        pipeline.flush()
+        assertThat(pipeline.awaitIdle(5, TimeUnit.SECONDS)).isTrue
+
+        assertThat(pipeline.isWakeupScheduled).isFalse
+        assertThat(transport.bodies).isEmpty()
+    }
+
+    @Test
+    fun `a wakeup is scheduled while events below the threshold are pending`() {
+        pipeline.enqueue(testEvent())
+        assertThat(pipeline.awaitIdle(5, TimeUnit.SECONDS)).isTrue
+
+        assertThat(pipeline.isWakeupScheduled).isTrue
+        assertThat(transport.bodies).isEmpty()
+    }
+
+    @Test
+    fun `high priority events are sent right away`() {
+        pipeline.enqueue(testEvent(name = "test_high_priority").apply { priority = TracksClient.EventPriority.HIGH })
+        assertThat(pipeline.awaitIdle(5, TimeUnit.SECONDS)).isTrue
+
+        assertThat(transport.bodies).hasSize(1)
+        assertThat(transport.bodies[0]).contains("test_high_priority")
+        assertThat(EventTable.hasEvents(context)).isFalse
+        assertThat(pipeline.isWakeupScheduled).isFalse
+    }
+
+    @Test
+    fun `flush completes once all the events are sent`() {
+        repeat(3) { pipeline.enqueue(testEvent()) }
+
+        val result = pipeline.flush().get(5, TimeUnit.SECONDS)
+
+        assertThat(result.sentEventsCount).isEqualTo(3)
+        assertThat(result.failedEventsCount).isZero
+        assertThat(result.isSuccessful).isTrue
+        assertThat(EventTable.hasEvents(context)).isFalse
+    }
+
+    @Test
+    fun `concurrent flushes share the same upload`() {
+        pipeline.enqueue(testEvent())
+        transport.blockUploads()
+
+        val first = pipeline.flush()
+        val second = pipeline.flush()
+        transport.unblockUploads()
+
+        assertThat(second).isSameAs(first)
+        assertThat(first.get(5, TimeUnit.SECONDS).sentEventsCount).isEqualTo(1)
+        assertThat(transport.bodies).hasSize(1)
+    }
+
+    @Test
+    fun `events tracked while a dispatch pass is running are sent before the flush completes`() {
+        val db = TracksDatabaseHelper.getWritableDb(context)
+        // The dispatch pass started by the first flush waits for this transaction to write to the DB
+        db.beginTransaction()
+        val flush = try {
+            pipeline.flush()
+            Thread.sleep(BLOCK_TIMEOUT_MS)
+            pipeline.enqueue(testEvent())
+            pipeline.flush()
+        } finally {
+            db.endTransaction()
+        }
+
+        assertThat(flush.get(5, TimeUnit.SECONDS).sentEventsCount).isEqualTo(1)
+        assertThat(transport.bodies).hasSize(1)
+        assertThat(EventTable.hasEvents(context)).isFalse
+    }
+
+    @Test
+    fun `flush reports the events that failed to be sent`() {
+        transport.responseCode = HttpURLConnection.HTTP_INTERNAL_ERROR
+        repeat(2) { pipeline.enqueue(testEvent()) }
+
+        val result = pipeline.flush().get(5, TimeUnit.SECONDS)
+
+        assertThat(result.sentEventsCount).isZero
+        assertThat(result.failedEventsCount).isEqualTo(2)
+        assertThat(EventTable.getEventsCount(context)).isEqualTo(2)
+    }
+
+    @Test
+    fun `flush fails right away without network`() {
+        val connectivityManager = context.getSystemService(Context.CONNECTIVITY_SERVICE) as ConnectivityManager
+        shadowOf(connectivityManager).setActiveNetworkInfo(null)
+        pipeline.enqueue(testEvent())
+
+        val result = pipeline.flush().get(5, TimeUnit.SECONDS)
+
+        assertThat(result.failedEventsCount).isEqualTo(1)
+        assertThat(transport.bodies).isEmpty()
+    }
+
+    @Test
+    fun `the oldest queued events are dropped when the input queue is full`() {
+        val names = fillInputQueue(TracksClient.IngestOverflowPolicy.DROP_OLDEST, timeoutMs = 0L)
+
+        assertThat(names.storedNames).containsExactly("test_event_2", "test_event_3", "test_event_4", "test_event_5")
+        assertThat(names.droppedCount).isEqualTo(2)
+    }
+
+    @Test
+    fun `the new events are dropped when the input queue is full`() {
+        val names = fillInputQueue(TracksClient.IngestOverflowPolicy.DROP_NEWEST, timeoutMs = 0L)
+
+        assertThat(names.storedNames).containsExactly("test_event_0", "test_event_1", "test_event_2", "test_event_3")
+        assertThat(names.droppedCount).isEqualTo(2)
+    }
+
+    @Test
+    fun `the new events are dropped once the timeout elapsed when the input queue stays full`() {
+        val start = System.nanoTime()
+        val names = fillInputQueue(TracksClient.IngestOverflowPolicy.BLOCK_WITH_TIMEOUT, timeoutMs = BLOCK_TIMEOUT_MS)
+
+        // Nothing drains the queue of a pipeline that is not started: each extra event waits for the timeout
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isGreaterThanOrEqualTo(2 * BLOCK_TIMEOUT_MS)
+        assertThat(names.storedNames).containsExactly("test_event_0", "test_event_1", "test_event_2", "test_event_3")
+        assertThat(names.droppedCount).isEqualTo(2)
+    }
+
+    @Test
+    fun `producers waiting for a free slot are unblocked by the ingest stage`() {
+        val smallPipeline = EventsPipeline(context, DeviceInformation(context), ENDPOINT_URL, transport,
+                SMALL_QUEUE_CAPACITY)
+        smallPipeline.setOverflowPolicy(TracksClient.IngestOverflowPolicy.BLOCK_WITH_TIMEOUT, TimeUnit.SECONDS.toMillis(5))
+        smallPipeline.start()
+
+        repeat(SMALL_QUEUE_CAPACITY + 2) { smallPipeline.enqueue(testEvent(name = "test_event_$it")) }
+        assertThat(smallPipeline.awaitIdle(5, TimeUnit.SECONDS)).isTrue
+        smallPipeline.shutdown()
+
+        assertThat(smallPipeline.droppedEventsCount).isZero
+        assertThat(EventTable.getEventsCount(context)).isEqualTo(SMALL_QUEUE_CAPACITY + 2)
+    }
+
+    @Test
+    fun `the oldest stored events are evicted once the queue is full`() {
+        val connectivityManager = context.getSystemService(Context.CONNECTIVITY_SERVICE) as ConnectivityManager
+        shadowOf(connectivityManager).setActiveNetworkInfo(null)
+        EventTable.insertEvents(context, (0 until TracksClient.DEFAULT_EVENTS_QUEUE_MAX_SIZE).map {
+            testEvent(name = "old_event_$it")
+        })
+
+        repeat(5) { pipeline.enqueue(testEvent()) }
+        assertThat(pipeline.awaitIdle(5, TimeUnit.SECONDS)).isTrue
+
+        assertThat(pipeline.evictedEventsCount).isEqualTo(5)
+        assertThat(EventTable.getEventsCount(context)).isEqualTo(TracksClient.DEFAULT_EVENTS_QUEUE_MAX_SIZE)
+        assertThat(SqlUtils.intForQuery(TracksDatabaseHelper.getReadableDb(context),
+                "SELECT COUNT(*) FROM tbl_events WHERE event_name = 'old_event_4' OR event_name = 'old_event_5'", null))
+            .isEqualTo(1)
+    }
+
+    @Test
+    fun `new events of a lower priority are dropped rather than the stored ones once the queue is full`() {
+        val connectivityManager = context.getSystemService(Context.CONNECTIVITY_SERVICE) as ConnectivityManager
+        shadowOf(connectivityManager).setActiveNetworkInfo(null)
+        EventTable.insertEvents(context, (0 until TracksClient.DEFAULT_EVENTS_QUEUE_MAX_SIZE).map {
+            testEvent(name = "old_event_$it").apply { priority = TracksClient.EventPriority.HIGH }
+        })
+
+        repeat(5) { pipeline.enqueue(testEvent().apply { priority = TracksClient.EventPriority.LOW }) }
+        assertThat(pipeline.awaitIdle(5, TimeUnit.SECONDS)).isTrue
+
+        assertThat(pipeline.evictedEventsCount).isEqualTo(5)
+        assertThat(SqlUtils.intForQuery(TracksDatabaseHelper.getReadableDb(context),
+                "SELECT COUNT(*) FROM tbl_events WHERE priority = 2", null))
+            .isEqualTo(TracksClient.DEFAULT_EVENTS_QUEUE_MAX_SIZE)
+        assertThat(EventTable.getEventsCount(context)).isEqualTo(TracksClient.DEFAULT_EVENTS_QUEUE_MAX_SIZE)
+    }
+
+    @Test
+    fun `expired events are dropped before being sent`() {
+        pipeline.enqueue(testEvent(timestamp = System.currentTimeMillis() - 2L * TracksClient.DEFAULT_EVENT_MAX_AGE))
+        pipeline.enqueue(testEvent())
+
+        val result = pipeline.flush().get(5, TimeUnit.SECONDS)
+
+        assertThat(result.sentEventsCount).isEqualTo(1)
+        assertThat(result.droppedEventsCount).isEqualTo(1)
+        assertThat(pipeline.expiredEventsCount).isEqualTo(1)
+        assertThat(transport.bodies).hasSize(1)
+    }
+
+    @Test
+    fun `requests rejected for being compressed are sent again uncompressed right away`() {
+        transport.rejectsGzip = true
+        pipeline.enqueue(testEvent())
+
+        val result = pipeline.flush().get(5, TimeUnit.SECONDS)
+
+        assertThat(result.isSuccessful).isTrue
+        assertThat(result.sentEventsCount).isEqualTo(1)
+        assertThat(transport.gzipFlags).containsExactly(true, false)
+        assertThat(EventTable.hasEvents(context)).isFalse
+        assertThat(pipeline.isWakeupScheduled).isFalse
+
+        // Compression stays off for the next requests
+        pipeline.enqueue(testEvent())
+        assertThat(pipeline.flush().get(5, TimeUnit.SECONDS).sentEventsCount).isEqualTo(1)
+        assertThat(transport.gzipFlags).containsExactly(true, false, false)
+    }
+
+    @Test
+    fun `flush completes once the last pages in flight are acknowledged`() {
+        val eventsCount = 3 * TracksClient.DEFAULT_BATCH_MAX_EVENTS
+        EventTable.insertEvents(context, (0 until eventsCount).map { testEvent(name = "test_event_$it") })
+        // The dispatch stage runs while the pages of the default window are being sent
+        transport.postDelayMs = 50
+
+        val result = pipeline.flush().get(5, TimeUnit.SECONDS)
+
+        assertThat(result.sentEventsCount).isEqualTo(eventsCount)
+        assertThat(result.isSuccessful).isTrue
+        assertThat(transport.bodies).hasSize(3)
+        assertThat(EventTable.hasEvents(context)).isFalse
+    }
+
+    @Test
+    fun `requests rejected with another client error are sent again uncompressed`() {
+        transport.rejectsGzip = true
+        transport.gzipRejectionCode = HttpURLConnection.HTTP_BAD_REQUEST
+        pipeline.enqueue(testEvent())
+
+        val result = pipeline.flush().get(5, TimeUnit.SECONDS)
+
+        assertThat(result.sentEventsCount).isEqualTo(1)
+        assertThat(transport.gzipFlags).containsExactly(true, false)
+        assertThat(EventTable.hasEvents(context)).isFalse
+    }
+
+    @Test
+    fun `compression stays enabled when uncompressed requests are rejected as well`() {
+        transport.responseCode = HttpURLConnection.HTTP_BAD_REQUEST
+        pipeline.enqueue(testEvent())
+
+        val result = pipeline.flush().get(5, TimeUnit.SECONDS)
+
+        assertThat(result.failedEventsCount).isEqualTo(1)
+        assertThat(transport.gzipFlags).containsExactly(true, false)
+        assertThat(pipeline.isGzipEnabled).isTrue
+    }
+
+    @Test
+    fun `no more requests are built than the in-flight window allows`() {
+        pipeline.setMaxInFlightRequests(2)
+        // Events of different clients are sent in different requests
+        (1..3).forEach { tag -> pipeline.enqueue(testEvent().apply { clientTag = tag }) }
+        transport.blockUploads()
+
+        val flush = pipeline.flush()
+        assertThat(transport.awaitUploadStarted()).isTrue
+
+        // The second request may still be being built when the first one starts
+        assertThat(awaitLeasedEventsCount(2)).isEqualTo(2)
+        Thread.sleep(BLOCK_TIMEOUT_MS)
+        assertThat(leasedEventsCount()).isEqualTo(2)
+        assertThat(pipeline.inFlightEventsBytes).isPositive
+        transport.unblockUploads()
+        assertThat(flush.get(5, TimeUnit.SECONDS).sentEventsCount).isEqualTo(3)
+        assertThat(pipeline.inFlightEventsBytes).isZero
+    }
+
+    @Test
+    fun `requests built ahead are not sent after a failure`() {
+        pipeline.setMaxInFlightRequests(2)
+        transport.responseCode = HttpURLConnection.HTTP_INTERNAL_ERROR
+        (1..2).forEach { tag -> pipeline.enqueue(testEvent().apply { clientTag = tag }) }
+
+        val result = pipeline.flush().get(5, TimeUnit.SECONDS)
+
+        assertThat(transport.bodies).hasSize(1)
+        assertThat(result.failedEventsCount).isEqualTo(2)
+        assertThat(leasedEventsCount()).isZero
+        val db = TracksDatabaseHelper.getReadableDb(context)
+        assertThat(SqlUtils.intForQuery(db, "SELECT SUM(retry_count) FROM tbl_events", null)).isEqualTo(1)
+        assertThat(pipeline.inFlightEventsBytes).isZero
+    }
+
+    @Test
+    fun `pending events are sent when the app goes to the background`() {
+        pipeline.enqueue(testEvent())
+        assertThat(pipeline.awaitIdle(5, TimeUnit.SECONDS)).isTrue
+
+        context.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN)
+        assertThat(pipeline.awaitIdle(5, TimeUnit.SECONDS)).isTrue
+
+        assertThat(transport.bodies).hasSize(1)
+        assertThat(EventTable.hasEvents(context)).isFalse
+        assertThat(pipeline.isWakeupScheduled).isFalse
+    }
+
+    @Test
+    fun `nothing is sent when the app goes to the background without pending events`() {
+        context.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN)
+        assertThat(pipeline.awaitIdle(5, TimeUnit.SECONDS)).isTrue
+
+        // The flush is not left pending for the next events either
+        pipeline.enqueue(testEvent())
+        assertThat(pipeline.awaitIdle(5, TimeUnit.SECONDS)).isTrue
+        assertThat(transport.bodies).isEmpty()
+        assertThat(pipeline.isWakeupScheduled).isTrue
+    }
+
+    @Test
+    fun `rows left in a previous format are migrated once started`() {
+        // The pipeline of setUp is done checking the rows
+        assertThat(pipeline.awaitIdle(5, TimeUnit.SECONDS)).isTrue
+        val db = TracksDatabaseHelper.getWritableDb(context)
+        // As after an upgrade from a version whose rows were stored as JSON text
+        db.execSQL("UPDATE tbl_metadata SET value = 1 WHERE key = 'rows_version'")
+        db.execSQL("INSERT INTO tbl_events (event_name, user, timestamp, user_props) VALUES ('test_event_name', 'user', ?, ?)",
+                arrayOf<Any>(System.currentTimeMillis(), """{"plan":"free"}"""))
+        val otherPipeline = EventsPipeline(context, DeviceInformation(context), ENDPOINT_URL, transport)
+
+        otherPipeline.start()
+        assertThat(otherPipeline.awaitIdle(5, TimeUnit.SECONDS)).isTrue
+        otherPipeline.shutdown()
+
+        assertThat(SqlUtils.intForQuery(db, "SELECT COUNT(*) FROM tbl_events" +
+                " WHERE user_props IS NULL AND user_props_id IS NOT NULL", null)).isEqualTo(1)
+    }
+
+    @Test
+    fun `shutdown lets the running upload complete and drops the work queued after it`() {
+        pipeline.enqueue(testEvent())
+        transport.blockUploads()
+        val flush = pipeline.flush()
+        assertThat(transport.awaitUploadStarted()).isTrue
+
+        pipeline.shutdown()
+        pipeline.enqueue(testEvent(name = "test_after_shutdown"))
+        assertThat(pipeline.flush().isDone).isTrue
+        transport.unblockUploads()
+
+        assertThat(flush.isDone).isTrue
+        assertThat(pipeline.awaitIdle(5, TimeUnit.SECONDS)).isTrue
+        assertThat(transport.bodies).hasSize(1)
+        assertThat(transport.bodies[0]).doesNotContain("test_after_shutdown")
+        assertThat(EventTable.hasEvents(context)).isFalse
+    }
+
+    @Test
+    fun `clients share the same pipeline until the last one releases it`() {
+        val first = EventsPipeline.acquireShared(context, ENDPOINT_URL)
+        val second = EventsPipeline.acquireShared(context, ENDPOINT_URL)
+        assertThat(second).isSameAs(first)
+
+        EventsPipeline.releaseShared(first)
+        assertThat(first.isShutdown).isFalse
+
+        EventsPipeline.releaseShared(second)
+        assertThat(first.isShutdown).isTrue
+
+        val next = EventsPipeline.acquireShared(context, ENDPOINT_URL)
+        assertThat(next).isNotSameAs(first)
+        EventsPipeline.releaseShared(next)
+    }
+
+    // Tracks 2 more events than a stopped pipeline can hold, then stores the ones left in its input queue
+    private fun fillInputQueue(policy: TracksClient.IngestOverflowPolicy, timeoutMs: Long): FilledQueue {
+        val smallPipeline = EventsPipeline(context, DeviceInformation(context), ENDPOINT_URL, transport,
+                SMALL_QUEUE_CAPACITY)
+        smallPipeline.setOverflowPolicy(policy, timeoutMs)
+        repeat(SMALL_QUEUE_CAPACITY + 2) { smallPipeline.enqueue(testEvent(name = "test_event_$it")) }
+        val droppedCount = smallPipeline.droppedEventsCount
+
+        smallPipeline.start()
+        assertThat(smallPipeline.awaitIdle(5, TimeUnit.SECONDS)).isTrue
+        smallPipeline.shutdown()
+        return FilledQueue(EventTable.getAndDeleteEvents(context, 0).map { it.eventName }, droppedCount)
+    }
+
+    private data class FilledQueue(val storedNames: List<String>, val droppedCount: Long)
+
+    private fun leasedEventsCount() = SqlUtils.intForQuery(TracksDatabaseHelper.getReadableDb(context),
+            "SELECT COUNT(*) FROM tbl_events WHERE batch_id IS NOT NULL", null)
+
+    private fun awaitLeasedEventsCount(expectedCount: Int): Int {
+        val deadline = System.currentTimeMillis() + 5000
+        var count = leasedEventsCount()
+        while (count < expectedCount && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10)
+            count = leasedEventsCount()
+        }
+        return count
+    }
+
+    private class RecordingUploadTransport : UploadTransport {
+        val bodies: MutableList<String> = CopyOnWriteArrayList()
+        @Volatile var responseCode = HttpURLConnection.HTTP_OK
+        @Volatile var rejectsGzip = false
+        @Volatile var gzipRejectionCode = HttpURLConnection.HTTP_UNSUPPORTED_TYPE
+        @Volatile var postDelayMs = 0L
+        val gzipFlags: MutableList<Boolean> = CopyOnWriteArrayList()
+        @Volatile private var gate = CountDownLatch(0)
+        private val uploadStarted = CountDownLatch(1)
+
+        fun awaitUploadStarted() = uploadStarted.await(5, TimeUnit.SECONDS)
+
+        fun blockUploads() {
+            gate = CountDownLatch(1)
+        }
+
+        fun unblockUploads() {
+            gate.countDown()
+        }
+
+        override fun post(url: String, userAgent: String, body: UploadTransport.Body, isGzipEnabled: Boolean): UploadResponse {
+            uploadStarted.countDown()
+            gate.await(5, TimeUnit.SECONDS)
+            Thread.sleep(postDelayMs)
+            gzipFlags.add(isGzipEnabled)
+            if (isGzipEnabled && rejectsGzip) {
+                return UploadResponse(gzipRejectionCode, 0L)
+            }
+            val out = ByteArrayOutputStream()
+            body.writeTo(out)
+            bodies.add(out.toString("UTF-8"))
+            return UploadResponse(responseCode, 0L)
+        }
+    }
+
+    private companion object {
+        const val ENDPOINT_URL = "https://example.com/tracks/record"
+        const val SMALL_QUEUE_CAPACITY = 4
+        const val BLOCK_TIMEOUT_MS = 50L
+    }
+}
@@ -0,0 +1,71 @@
+package com.automattic.android.tracks
+
+import org.assertj.core.api.Assertions.assertThat
+import org.json.JSONArray
+import org.json.JSONObject
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.StringWriter
+import java.util.zip.GZIPInputStream
+import java.util.zip.GZIPOutputStream
+
+@RunWith(RobolectricTestRunner::class)
+class JsonStreamWriterTest {
+
+    @Test
+    fun `should write the same JSON as JSONObject`() {
+        val json = JSONObject()
+                .put("string", "quote \" backslash \\ slash / tab \t newline \n control \u0001 unicode é")
+                .put("long", 1_234_567_890_123L)
+                .put("double", 1.5)
+                .put("integral_double", 2.0)
+                .put("boolean", true)
+                .put("null", JSONObject.NULL)
+                .put("nested", JSONObject().put("empty_array", JSONArray()).put("empty_object", JSONObject()))
+                .put("array", JSONArray().put(1).put("two").put(JSONObject().put("three", 3)).put(false))
+
+        assertThat(writeToString(json)).isEqualTo(json.toString())
+    }
+
+    @Test
+    fun `should separate the values written one by one`() {
+        val out = StringWriter()
+        JsonStreamWriter(out).beginObject()
+                .name("a").value(1L)
+                .name("b").beginArray().value("x").value(true).value(null as String?).endArray()
+                .name("c").value(JSONObject().put("d", "e"))
+                .endObject()
+                .flush()
+
+        assertThat(out.toString()).isEqualTo("""{"a":1,"b":["x",true,null],"c":{"d":"e"}}""")
+    }
+
+    @Test
+    fun `should compress repetitive events to a fraction of their size`() {
+        val events = JSONArray()
+        repeat(500) {
+            events.put(JSONObject()
+                    .put("_en", "wpandroid_editor_post_saved")
+                    .put("_ts", 1_600_000_000_000L + it)
+                    .put("blog_id", 12345)
+                    .put("editor_source", "gutenberg"))
+        }
+        val json = JSONObject().put("events", events)
+
+        val compressed = ByteArrayOutputStream()
+        JsonStreamWriter(GZIPOutputStream(compressed).writer(Charsets.UTF_8).buffered()).use { it.value(json) }
+
+        val decompressed = GZIPInputStream(ByteArrayInputStream(compressed.toByteArray())).reader().readText()
+        assertThat(decompressed).isEqualTo(json.toString())
+        assertThat(compressed.size()).isLessThan(decompressed.length / 8)
+    }
+
+    private fun writeToString(value: Any): String {
+        val out = StringWriter()
+        JsonStreamWriter(out).value(value).flush()
+        return out.toString()
+    }
+}
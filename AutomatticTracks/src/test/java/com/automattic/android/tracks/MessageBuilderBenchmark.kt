@@ -0,0 +1,97 @@
+package com.automattic.android.tracks
+
+import com.automattic.android.tracks.TracksClient.NosaraUserType
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import java.io.Writer
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.atomic.AtomicBoolean
+import kotlin.concurrent.thread
+
+/**
+ * Throughput of threads tracking events while the upload thread writes a large request.
+ */
+@RunWith(RobolectricTestRunner::class)
+class MessageBuilderBenchmark {
+
+    @Test
+    fun `track events while a request of 10k events is written`() {
+        val requestEvents = (0 until REQUEST_EVENTS_COUNT).map { newEvent(it) }
+        // Warm up
+        trackConcurrently(requestEvents, globalLock = false)
+
+        // A global lock around every MessageBuilder call, like when all its methods were synchronized
+        val lockedNs = trackConcurrently(requestEvents, globalLock = true)
+        val lockFreeNs = trackConcurrently(requestEvents, globalLock = false)
+
+        report("synchronized MessageBuilder", lockedNs)
+        report("lock-free MessageBuilder", lockFreeNs)
+        assertThat(lockFreeNs).isPositive
+    }
+
+    private fun trackConcurrently(requestEvents: List<Event>, globalLock: Boolean): Long {
+        val isTracking = AtomicBoolean(true)
+        val writer = thread {
+            val commonProps = mapOf<String, Any>("_rt" to 1L)
+            while (isTracking.get()) {
+                withLock(globalLock) {
+                    MessageBuilder.writeRequest(JsonStreamWriter(NullWriter()), requestEvents, commonProps)
+                }
+            }
+        }
+
+        val done = CountDownLatch(PRODUCERS_COUNT)
+        val start = System.nanoTime()
+        repeat(PRODUCERS_COUNT) { producer ->
+            thread {
+                repeat(EVENTS_PER_PRODUCER) { newEvent(producer * EVENTS_PER_PRODUCER + it, globalLock) }
+                done.countDown()
+            }
+        }
+        done.await()
+        val elapsedNs = System.nanoTime() - start
+
+        isTracking.set(false)
+        writer.join()
+        return elapsedNs
+    }
+
+    private fun newEvent(index: Int, globalLock: Boolean = false): Event {
+        val event = Event("test_event_tracked", "jane", NosaraUserType.ANON, "UA/1", index.toLong())
+        PROPERTY_NAMES.forEach { name ->
+            // Event.addCustomEventProperty checks every key with MessageBuilder.isReservedKeyword
+            withLock(globalLock) { event.addCustomEventProperty(name, index) }
+        }
+        return event
+    }
+
+    private inline fun withLock(globalLock: Boolean, block: () -> Unit) {
+        if (globalLock) {
+            synchronized(MessageBuilder::class.java) { block() }
+        } else {
+            block()
+        }
+    }
+
+    private fun report(label: String, elapsedNs: Long) {
+        reportThroughput("$label, ${PRODUCERS_COUNT * EVENTS_PER_PRODUCER} events tracked by $PRODUCERS_COUNT threads",
+                PRODUCERS_COUNT * EVENTS_PER_PRODUCER, elapsedNs)
+    }
+
+    private class NullWriter : Writer() {
+        override fun write(cbuf: CharArray, off: Int, len: Int) = Unit
+        override fun write(c: Int) = Unit
+        override fun write(str: String) = Unit
+        override fun flush() = Unit
+        override fun close() = Unit
+    }
+
+    private companion object {
+        const val REQUEST_EVENTS_COUNT = 10_000
+        const val PRODUCERS_COUNT = 4
+        const val EVENTS_PER_PRODUCER = 5_000
+        val PROPERTY_NAMES = listOf("blog_id", "post_id", "source", "editor", "is_new")
+    }
+}
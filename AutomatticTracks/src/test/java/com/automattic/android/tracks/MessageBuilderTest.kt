@@ -0,0 +1,120 @@
+package com.automattic.android.tracks
+
+import com.automattic.android.tracks.TracksClient.NosaraUserType
+import org.assertj.core.api.Assertions.assertThat
+import org.json.JSONObject
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import java.io.StringWriter
+
+@RunWith(RobolectricTestRunner::class)
+class MessageBuilderTest {
+
+    @Test
+    fun `should write the events and the common properties of a request`() {
+        val body = writeRequest(events(), commonProps(userAgent = "UA/1"))
+
+        assertThat(body).isEqualTo(
+                """{"events":[""" +
+                        """{"_en":"wpandroid_editor_post_saved","_ts":1600000000000,"_ul":"jane","_ut":"wpcom:user_id",""" +
+                        """"user_info_favcolor":"blue \"navy\" \/ ü","device_info_bluetooth_enabled":"true",""" +
+                        """"editor":"gutenberg\n"},""" +
+                        """{"_en":"wpandroid_app_opened","_via_ua":"UA\/2","_ts":1600000000001,"_ui":"anon-1",""" +
+                        """"_ut":"anon","user_info_plan":"override"},""" +
+                        """{"_en":"simplenote_note_created","_ts":1600000000002,"_ul":"john","_ut":"dayone:user_id",""" +
+                        """"_ui":"john"},""" +
+                        """{"_en":"pocketcasts_episode_played","_via_ua":"","_ts":1600000000003,"_ui":"p1",""" +
+                        """"_ut":"dayone:user_id","device_info_nested":"{\"a\":1}"},""" +
+                        """{"_en":"dayone_entry_created","_ts":1600000000004,"_ui":"d1","_ut":"dayone:user_id"},""" +
+                        """{"_en":"_aliasUser","_ts":1600000000005,"_ul":"jane","_ut":"wpcom:user_id","anonId":"anon-1"}""" +
+                        """],"commonProps":{"_via_ua":"UA\/1","_lg":"en_US","device_info_os":"Android",""" +
+                        """"device_info_bluetooth_enabled":"false","user_info_plan":"free","_rt":1600000999000}}"""
+        )
+    }
+
+    @Test
+    fun `should write the user agent of every event when there is none in common`() {
+        val event = event("wpandroid_app_opened", NosaraUserType.ANON, userAgent = "UA/1")
+
+        val body = writeRequest(listOf(event), commonProps(userAgent = null))
+
+        assertThat(body).isEqualTo(
+                """{"events":[{"_en":"wpandroid_app_opened","_via_ua":"UA\/1","_ts":1600000000000,"_ui":"jane",""" +
+                        """"_ut":"anon"}],"commonProps":{"_lg":"en_US","device_info_os":"Android",""" +
+                        """"device_info_bluetooth_enabled":"false","user_info_plan":"free","_rt":1600000999000}}"""
+        )
+    }
+
+    @Test
+    fun `should write an empty list when there are no events`() {
+        val body = writeRequest(emptyList(), linkedMapOf("_rt" to 1L))
+
+        assertThat(body).isEqualTo("""{"events":[],"commonProps":{"_rt":1}}""")
+    }
+
+    @Test
+    fun `should detect the reserved keywords whatever their case`() {
+        listOf("_en", "_via_ua", "_ts", "_rt", "_ut", "_ui", "_lg", "_ul", "_EN", "user_info_plan", "Device_Info_os")
+                .forEach { assertThat(MessageBuilder.isReservedKeyword(it)).`as`(it).isTrue }
+        listOf("en", "blog_id", "user_info", "info_user_plan")
+                .forEach { assertThat(MessageBuilder.isReservedKeyword(it)).`as`(it).isFalse }
+    }
+
+    private fun writeRequest(events: List<Event>, commonProps: Map<String, Any>): String {
+        val out = StringWriter()
+        MessageBuilder.writeRequest(JsonStreamWriter(out), events, commonProps)
+        return out.toString()
+    }
+
+    private fun commonProps(userAgent: String?): Map<String, Any> {
+        val props = linkedMapOf<String, Any>()
+        userAgent?.let { props["_via_ua"] = it }
+        props["_lg"] = "en_US"
+        props["device_info_os"] = "Android"
+        props["device_info_bluetooth_enabled"] = "false"
+        props["user_info_plan"] = "free"
+        props["_rt"] = 1_600_000_999_000L
+        return props
+    }
+
+    private fun events() = listOf(
+            // Only the properties that differ from the common ones are written
+            event("wpandroid_editor_post_saved", NosaraUserType.WPCOM, timestamp = 1_600_000_000_000L,
+                    userProps = JSONObject().put("FavColor", "blue \"navy\" / ü"),
+                    deviceInfo = JSONObject().put("bluetooth_enabled", true),
+                    customProps = JSONObject().put("editor", "gutenberg\n")),
+            // A custom property overrides a user one, at its position
+            event("wpandroid_app_opened", NosaraUserType.ANON, user = "anon-1", userAgent = "UA/2",
+                    timestamp = 1_600_000_000_001L,
+                    userProps = JSONObject().put("plan", "premium"),
+                    customProps = JSONObject().put("user_info_plan", "override")),
+            event("simplenote_note_created", NosaraUserType.SIMPLENOTE, user = "john", timestamp = 1_600_000_000_002L,
+                    userProps = JSONObject().put("plan", "free")),
+            event("pocketcasts_episode_played", NosaraUserType.POCKETCASTS, user = "p1", userAgent = "",
+                    timestamp = 1_600_000_000_003L,
+                    deviceInfo = JSONObject().put("nested", JSONObject().put("a", 1))),
+            event("dayone_entry_created", NosaraUserType.DAYONE, user = "d1", timestamp = 1_600_000_000_004L,
+                    deviceInfo = JSONObject().put("bluetooth_enabled", false)),
+            event(MessageBuilder.ALIAS_USER_EVENT_NAME, NosaraUserType.WPCOM, timestamp = 1_600_000_000_005L,
+                    customProps = JSONObject().put("anonId", "anon-1")),
+            // Skipped: the alias event has no anonId
+            event(MessageBuilder.ALIAS_USER_EVENT_NAME, NosaraUserType.WPCOM, timestamp = 1_600_000_000_006L)
+    )
+
+    @Suppress("LongParameterList")
+    private fun event(
+        name: String,
+        userType: NosaraUserType,
+        user: String = "jane",
+        userAgent: String = "UA/1",
+        timestamp: Long = 1_600_000_000_000L,
+        userProps: JSONObject? = null,
+        deviceInfo: JSONObject? = null,
+        customProps: JSONObject? = null
+    ) = Event(name, user, userType, userAgent, timestamp).apply {
+        userProperties = userProps
+        this.deviceInfo = deviceInfo
+        setCustomProperties(customProps)
+    }
+}
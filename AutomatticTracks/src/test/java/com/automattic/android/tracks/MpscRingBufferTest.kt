@@ -0,0 +1,84 @@
+package com.automattic.android.tracks
+
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.Test
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+class MpscRingBufferTest {
+
+    @Test
+    fun `should round the capacity up to a power of two`() {
+        assertThat(MpscRingBuffer<Int>(1000).capacity()).isEqualTo(1024)
+        assertThat(MpscRingBuffer<Int>(16).capacity()).isEqualTo(16)
+    }
+
+    @Test
+    fun `should poll elements in insertion order`() {
+        val buffer = MpscRingBuffer<Int>(4)
+
+        (1..3).forEach { buffer.offer(it) }
+
+        assertThat(buffer.size()).isEqualTo(3)
+        assertThat(buffer.poll()).isEqualTo(1)
+        assertThat(buffer.poll()).isEqualTo(2)
+        assertThat(buffer.poll()).isEqualTo(3)
+        val empty: Int? = buffer.poll()
+        assertThat(empty).isNull()
+    }
+
+    @Test
+    fun `should reject elements when full`() {
+        val buffer = MpscRingBuffer<Int>(4)
+
+        (1..4).forEach { assertThat(buffer.offer(it)).isTrue }
+
+        assertThat(buffer.offer(5)).isFalse
+        assertThat(buffer.size()).isEqualTo(4)
+    }
+
+    @Test
+    fun `should reuse slots after they are polled`() {
+        val buffer = MpscRingBuffer<Int>(4)
+        val drained = mutableListOf<Int>()
+
+        repeat(10) { lap ->
+            (0 until 4).forEach { assertThat(buffer.offer(lap * 4 + it)).isTrue }
+            buffer.drainTo(drained)
+        }
+
+        assertThat(drained).containsExactlyElementsOf(0 until 40)
+        assertThat(buffer.isEmpty).isTrue
+    }
+
+    @Test
+    fun `should not lose elements offered by concurrent producers`() {
+        val producers = 8
+        val elementsPerProducer = 10_000
+        val buffer = MpscRingBuffer<Int>(256)
+        val executor = Executors.newFixedThreadPool(producers)
+        val done = CountDownLatch(producers)
+
+        repeat(producers) { producer ->
+            executor.execute {
+                (0 until elementsPerProducer).forEach {
+                    while (!buffer.offer(producer * elementsPerProducer + it)) {
+                        Thread.yield()
+                    }
+                }
+                done.countDown()
+            }
+        }
+
+        val consumed = mutableListOf<Int>()
+        while (done.count > 0 || !buffer.isEmpty) {
+            buffer.drainTo(consumed)
+        }
+        executor.shutdown()
+        executor.awaitTermination(1, TimeUnit.SECONDS)
+
+        assertThat(consumed).hasSize(producers * elementsPerProducer)
+        assertThat(consumed.toSet()).hasSize(producers * elementsPerProducer)
+    }
+}
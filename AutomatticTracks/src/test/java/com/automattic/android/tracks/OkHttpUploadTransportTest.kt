@@ -0,0 +1,87 @@
+package com.automattic.android.tracks
+
+import okhttp3.OkHttpClient
+import okhttp3.mockwebserver.MockResponse
+import okhttp3.mockwebserver.MockWebServer
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import java.util.zip.GZIPInputStream
+
+@RunWith(RobolectricTestRunner::class)
+class OkHttpUploadTransportTest {
+    private val server = MockWebServer()
+    private val transport = OkHttpUploadTransport(OkHttpClient())
+    private val body = UploadTransport.Body { it.write("""{"events":[]}""".toByteArray()) }
+
+    @Before
+    fun setUp() {
+        server.start()
+    }
+
+    @After
+    fun tearDown() {
+        server.shutdown()
+    }
+
+    @Test
+    fun `should send a gzip-compressed body`() {
+        server.enqueue(MockResponse().setResponseCode(202))
+
+        val response = transport.post(url(), "TestAgent", body, true)
+
+        val request = server.takeRequest()
+        assertThat(response.isSuccessful).isTrue
+        assertThat(request.getHeader("Content-Encoding")).isEqualTo("gzip")
+        assertThat(request.getHeader("Content-Type")).isEqualTo("application/json; charset=utf-8")
+        assertThat(request.getHeader("User-Agent")).isEqualTo("TestAgent")
+        assertThat(GZIPInputStream(request.body.inputStream()).reader().readText()).isEqualTo("""{"events":[]}""")
+    }
+
+    @Test
+    fun `should send the body as is when compression is disabled`() {
+        server.enqueue(MockResponse().setResponseCode(200))
+
+        transport.post(url(), "TestAgent", body, false)
+
+        val request = server.takeRequest()
+        assertThat(request.getHeader("Content-Encoding")).isNull()
+        assertThat(request.body.readUtf8()).isEqualTo("""{"events":[]}""")
+    }
+
+    @Test
+    fun `should return the delay requested by a throttling server`() {
+        server.enqueue(MockResponse().setResponseCode(503).setHeader("Retry-After", "120"))
+
+        val response = transport.post(url(), "TestAgent", body, true)
+
+        assertThat(response.code).isEqualTo(503)
+        assertThat(response.isThrottled).isTrue
+        assertThat(response.retryAfterMs).isEqualTo(120_000)
+    }
+
+    @Test
+    fun `should reuse the connection for the next requests`() {
+        repeat(3) { server.enqueue(MockResponse().setResponseCode(202)) }
+
+        repeat(3) { transport.post(url(), "TestAgent", body, true) }
+
+        assertThat((1..3).map { server.takeRequest().sequenceNumber }).containsExactly(0, 1, 2)
+    }
+
+    @Test
+    fun `should return no response when the server cannot be reached`() {
+        val unreachableUrl = url()
+        server.shutdown()
+
+        val response = transport.post(unreachableUrl, "TestAgent", body, true)
+
+        assertThat(response.code).isEqualTo(UploadResponse.NO_RESPONSE)
+        assertThat(response.isSuccessful).isFalse
+    }
+
+    private fun url() = server.url("/tracks/record").toString()
+}
@@ -0,0 +1,88 @@
+package com.automattic.android.tracks
+
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.Test
+import java.util.ArrayDeque
+import java.util.concurrent.Executor
+
+class PipelineStageTest {
+
+    private val executor = ManualExecutor()
+    private val idleStages = mutableListOf<PipelineStage>()
+
+    @Test
+    fun `should merge the signals received while scheduled into one run`() {
+        var runsCount = 0
+        val stage = stage { runsCount++ }
+
+        repeat(3) { stage.signal() }
+
+        assertThat(executor.pendingCount).isEqualTo(1)
+        assertThat(stage.isIdle).isFalse
+        executor.runAll()
+        assertThat(runsCount).isEqualTo(1)
+        assertThat(stage.isIdle).isTrue
+        assertThat(idleStages).containsExactly(stage)
+    }
+
+    @Test
+    fun `should run once more when signaled while running`() {
+        var runsCount = 0
+        lateinit var stage: PipelineStage
+        stage = stage {
+            runsCount++
+            if (runsCount == 1) {
+                // Signals received during a run are merged as well
+                repeat(3) { stage.signal() }
+                assertThat(executor.pendingCount).isZero
+            }
+        }
+
+        stage.signal()
+        executor.runNext()
+
+        // The next run is queued behind the other tasks of the executor, not run in a loop
+        assertThat(runsCount).isEqualTo(1)
+        assertThat(executor.pendingCount).isEqualTo(1)
+        assertThat(idleStages).isEmpty()
+        executor.runAll()
+        assertThat(runsCount).isEqualTo(2)
+        assertThat(stage.isIdle).isTrue
+        assertThat(idleStages).containsExactly(stage)
+    }
+
+    @Test
+    fun `should be scheduled again when signaled after a run`() {
+        var runsCount = 0
+        val stage = stage { runsCount++ }
+
+        stage.signal()
+        executor.runAll()
+        stage.signal()
+        executor.runAll()
+
+        assertThat(runsCount).isEqualTo(2)
+        assertThat(idleStages).hasSize(2)
+    }
+
+    private fun stage(block: () -> Unit) = object : PipelineStage("test", executor,
+            PipelineStage.OnIdleListener { idleStages.add(it) }) {
+        override fun process() = block()
+    }
+
+    private class ManualExecutor : Executor {
+        private val tasks = ArrayDeque<Runnable>()
+
+        val pendingCount get() = tasks.size
+
+        override fun execute(command: Runnable) {
+            tasks.add(command)
+        }
+
+        fun runNext() = tasks.poll().run()
+
+        fun runAll() {
+            while (tasks.isNotEmpty()) runNext()
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.automattic.android.tracks
+
+import org.assertj.core.api.Assertions.assertThat
+import org.json.JSONObject
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+
+@RunWith(RobolectricTestRunner::class)
+class TracksClientTest {
+
+    @Test
+    fun `should derive the same client tag from the same settings`() {
+        // As another process would after a restart
+        val tag = TracksClient.clientTagOf("UA/1", JSONObject().put("plan", "free"))
+
+        assertThat(TracksClient.clientTagOf("UA/1", JSONObject().put("plan", "free"))).isEqualTo(tag)
+    }
+
+    @Test
+    fun `should derive different client tags from different settings`() {
+        val tag = TracksClient.clientTagOf("UA/1", JSONObject().put("plan", "free"))
+
+        assertThat(TracksClient.clientTagOf("UA/2", JSONObject().put("plan", "free"))).isNotEqualTo(tag)
+        assertThat(TracksClient.clientTagOf("UA/1", JSONObject().put("plan", "pro"))).isNotEqualTo(tag)
+        assertThat(TracksClient.clientTagOf("UA/1", null)).isNotEqualTo(tag)
+    }
+
+    @Test
+    fun `should treat empty user properties as none`() {
+        assertThat(TracksClient.clientTagOf("UA/1", JSONObject())).isEqualTo(TracksClient.clientTagOf("UA/1", null))
+    }
+}
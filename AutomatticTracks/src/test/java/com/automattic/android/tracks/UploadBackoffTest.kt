@@ -0,0 +1,87 @@
+package com.automattic.android.tracks
+
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.Test
+import java.util.Random
+
+class UploadBackoffTest {
+    private val now = 1_000_000L
+
+    @Test
+    fun `should not wait before any failure`() {
+        val backoff = UploadBackoff(1000, 60_000)
+
+        assertThat(backoff.getRemainingDelayMs(now)).isZero
+    }
+
+    @Test
+    fun `should keep the delay under an exponentially growing ceiling`() {
+        val backoff = UploadBackoff(1000, 60_000, Random(42))
+
+        val delays = (1..10).map { backoff.onFailure(now, 0) }
+
+        delays.forEachIndexed { attempt, delay ->
+            assertThat(delay).isBetween(0L, minOf(60_000L, 1000L shl attempt))
+        }
+    }
+
+    @Test
+    fun `should pick the whole ceiling when the random value is maximal`() {
+        val backoff = UploadBackoff(1000, 60_000, alwaysMax())
+
+        assertThat(backoff.onFailure(now, 0)).isEqualTo(999)
+        assertThat(backoff.onFailure(now, 0)).isEqualTo(1999)
+        assertThat(backoff.onFailure(now, 0)).isEqualTo(3999)
+        repeat(10) { backoff.onFailure(now, 0) }
+        assertThat(backoff.onFailure(now, 0)).isEqualTo(59_999)
+    }
+
+    @Test
+    fun `should wait at least the delay requested by the server`() {
+        val backoff = UploadBackoff(1000, 60_000, Random(42))
+
+        val delay = backoff.onFailure(now, 120_000)
+
+        assertThat(delay).isEqualTo(120_000)
+        assertThat(backoff.getRemainingDelayMs(now + 20_000)).isEqualTo(100_000)
+    }
+
+    @Test
+    fun `should reset after a success`() {
+        val backoff = UploadBackoff(1000, 60_000, alwaysMax())
+        repeat(5) { backoff.onFailure(now, 0) }
+
+        backoff.onSuccess()
+
+        assertThat(backoff.getRemainingDelayMs(now)).isZero
+        assertThat(backoff.consecutiveFailures).isZero
+        assertThat(backoff.onFailure(now, 0)).isEqualTo(999)
+    }
+
+    @Test
+    fun `should parse a Retry-After in seconds`() {
+        assertThat(UploadBackoff.parseRetryAfterMs("120", now)).isEqualTo(120_000)
+        assertThat(UploadBackoff.parseRetryAfterMs(" 5 ", now)).isEqualTo(5_000)
+    }
+
+    @Test
+    fun `should parse a Retry-After date`() {
+        val date = "Wed, 21 Oct 2015 07:28:00 GMT"
+        val dateMs = 1_445_412_480_000L
+
+        assertThat(UploadBackoff.parseRetryAfterMs(date, dateMs - 30_000)).isEqualTo(30_000)
+        assertThat(UploadBackoff.parseRetryAfterMs(date, dateMs + 30_000)).isZero
+    }
+
+    @Test
+    fun `should ignore a missing or invalid Retry-After`() {
+        assertThat(UploadBackoff.parseRetryAfterMs(null, now)).isZero
+        assertThat(UploadBackoff.parseRetryAfterMs("", now)).isZero
+        assertThat(UploadBackoff.parseRetryAfterMs("soon", now)).isZero
+        assertThat(UploadBackoff.parseRetryAfterMs("-10", now)).isZero
+    }
+
+    private fun alwaysMax() = object : Random() {
+        override fun nextDouble() = 0.9999999
+    }
+}
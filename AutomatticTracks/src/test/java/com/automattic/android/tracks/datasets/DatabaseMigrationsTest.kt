@@ -0,0 +1,224 @@
+package com.automattic.android.tracks.datasets
+
+import android.content.Context
+import android.database.sqlite.SQLiteDatabase
+import com.automattic.android.tracks.TracksClient
+import org.assertj.core.api.Assertions.assertThat
+import org.json.JSONObject
+import org.junit.After
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.RuntimeEnvironment
+
+@RunWith(RobolectricTestRunner::class)
+class DatabaseMigrationsTest {
+
+    private val context: Context = RuntimeEnvironment.getApplication()
+    private val db = SQLiteDatabase.create(null)
+
+    @After
+    fun tearDown() {
+        db.close()
+    }
+
+    @Test
+    fun `should open the DB at the latest version`() {
+        assertThat(TracksDatabaseHelper.getReadableDb(context).version).isEqualTo(DatabaseMigrations.LATEST_VERSION)
+    }
+
+    @Test
+    fun `should upgrade version 1 to the schema of a new DB`() {
+        createTablesAtVersion(DatabaseMigrations.LATEST_VERSION)
+        val newDb = SQLiteDatabase.create(null)
+        EventTable.createTables(newDb)
+        SnapshotTable.createTables(newDb)
+
+        assertThat(columns(db, "tbl_events")).containsExactlyInAnyOrderElementsOf(columns(newDb, "tbl_events"))
+        assertThat(columns(db, "tbl_snapshots")).containsExactlyInAnyOrderElementsOf(columns(newDb, "tbl_snapshots"))
+        assertThat(indexes(db)).containsExactlyInAnyOrderElementsOf(indexes(newDb))
+        newDb.close()
+    }
+
+    @Test
+    fun `should add the lease columns when upgrading to version 2`() {
+        createTablesAtVersion(1)
+        insertLegacyEvent()
+
+        DatabaseMigrations.migrateSchema(db, 1, 2)
+
+        assertThat(columns(db, "tbl_events")).contains("batch_id", "leased_at")
+        assertThat(indexes(db)).contains("idx_events_batch_id")
+        assertThat(SqlUtils.intForQuery(db, "SELECT COUNT(*) FROM tbl_events WHERE batch_id IS NULL", null)).isEqualTo(1)
+    }
+
+    @Test
+    fun `should encode the JSON properties of queued events when upgrading to version 3`() {
+        createTablesAtVersion(2)
+        insertLegacyEvent(userProps = """{"plan":"free"}""", deviceInfo = """{"os":"Android","is_online":true}""")
+        db.execSQL("INSERT INTO tbl_events (event_name, user, timestamp, custom_props) VALUES ('test_event_name', 'user', 2, ?)",
+                arrayOf("not json"))
+
+        DatabaseMigrations.migrateSchema(db, 2, 3)
+        assertThat(migrateAllRows(3)).isEqualTo(2)
+
+        db.rawQuery("SELECT typeof(user_props), typeof(device_info), typeof(custom_props), device_info" +
+                " FROM tbl_events", null).use { cursor ->
+            assertThat(cursor.count).isEqualTo(1)
+            cursor.moveToFirst()
+            assertThat(cursor.getString(0)).isEqualTo("blob")
+            assertThat(cursor.getString(1)).isEqualTo("blob")
+            assertThat(cursor.getString(2)).isEqualTo("null")
+            val deviceInfo = PropertiesCodec.decode(cursor.getBlob(3))
+            assertThat(deviceInfo.getString("os")).isEqualTo("Android")
+            assertThat(deviceInfo.getBoolean("is_online")).isTrue
+        }
+    }
+
+    @Test
+    fun `should move the properties of queued events to snapshots when upgrading to version 4`() {
+        createTablesAtVersion(3)
+        val deviceInfo = PropertiesCodec.encode(JSONObject().put("os", "Android"))
+        repeat(3) {
+            db.execSQL("INSERT INTO tbl_events (event_name, user, timestamp, device_info) VALUES ('test_event_name', 'user', $it, ?)",
+                    arrayOf(deviceInfo))
+        }
+
+        DatabaseMigrations.migrateSchema(db, 3, 4)
+        assertThat(migrateAllRows(4)).isEqualTo(3)
+
+        assertThat(SqlUtils.intForQuery(db, "SELECT COUNT(*) FROM tbl_snapshots", null)).isEqualTo(1)
+        assertThat(SqlUtils.intForQuery(db, "SELECT COUNT(*) FROM tbl_events" +
+                " WHERE device_info_id IS NOT NULL AND device_info IS NULL AND user_props_id IS NULL", null)).isEqualTo(3)
+    }
+
+    @Test
+    fun `should tag queued events with the default client when upgrading to version 5`() {
+        createTablesAtVersion(4)
+        insertLegacyEvent()
+
+        DatabaseMigrations.migrateSchema(db, 4, 5)
+
+        assertThat(SqlUtils.intForQuery(db, "SELECT COUNT(*) FROM tbl_events WHERE client_tag = 0", null)).isEqualTo(1)
+    }
+
+    @Test
+    fun `should index the expiry columns when upgrading to version 6`() {
+        createTablesAtVersion(5)
+        insertLegacyEvent()
+
+        DatabaseMigrations.migrateSchema(db, 5, 6)
+
+        assertThat(indexes(db)).contains("idx_events_timestamp", "idx_events_retry_count")
+        assertThat(SqlUtils.intForQuery(db, "SELECT COUNT(*) FROM tbl_events", null)).isEqualTo(1)
+    }
+
+    @Test
+    fun `should put queued events in the normal lane when upgrading to version 7`() {
+        createTablesAtVersion(6)
+        insertLegacyEvent()
+
+        DatabaseMigrations.migrateSchema(db, 6, 7)
+
+        assertThat(indexes(db)).contains("idx_events_priority")
+        assertThat(SqlUtils.intForQuery(db, "SELECT COUNT(*) FROM tbl_events WHERE priority = ?",
+                arrayOf(TracksClient.EventPriority.NORMAL.ordinal.toString()))).isEqualTo(1)
+    }
+
+    @Test
+    fun `should index the snapshot ids when upgrading to version 8`() {
+        createTablesAtVersion(7)
+        insertLegacyEvent()
+
+        DatabaseMigrations.migrateSchema(db, 7, 8)
+
+        assertThat(indexes(db)).contains("idx_events_user_props_id", "idx_events_device_info_id")
+        assertThat(SqlUtils.intForQuery(db, "SELECT COUNT(*) FROM tbl_events", null)).isEqualTo(1)
+    }
+
+    @Test
+    fun `should have all the rows checked once when upgrading to version 9`() {
+        createTablesAtVersion(8)
+        insertLegacyEvent()
+
+        DatabaseMigrations.migrateSchema(db, 8, 9)
+
+        assertThat(MetadataTable.getRowsVersion(db)).isEqualTo(DatabaseMigrations.FIRST_VERSION)
+        assertThat(SqlUtils.intForQuery(db, "SELECT COUNT(*) FROM tbl_events", null)).isEqualTo(1)
+    }
+
+    @Test
+    fun `should only run the row migrations of the versions after the one of the rows`() {
+        createTablesAtVersion(3)
+        // Left in the format of version 2: it is not encoded again by the migration to version 3
+        insertLegacyEvent(userProps = """{"plan":"free"}""")
+
+        assertThat(DatabaseMigrations.migrateRows(db, 3, 3, CHUNK_ROWS)).isZero
+        assertThat(DatabaseMigrations.migrateRows(db, 2, 3, CHUNK_ROWS)).isEqualTo(1)
+    }
+
+    @Test
+    fun `should migrate the rows of a large DB in chunks`() {
+        createTablesAtVersion(1)
+        db.beginTransaction()
+        repeat(LARGE_DB_ROWS) { insertLegacyEvent(userProps = """{"plan":"free"}""", deviceInfo = """{"os":"Android"}""") }
+        db.setTransactionSuccessful()
+        db.endTransaction()
+
+        // Opening the DB only changes the schema
+        DatabaseMigrations.migrateSchema(db, 1, DatabaseMigrations.LATEST_VERSION)
+        assertThat(SqlUtils.intForQuery(db, "SELECT COUNT(*) FROM tbl_events WHERE user_props IS NOT NULL", null))
+            .isEqualTo(LARGE_DB_ROWS)
+
+        val chunks = generateSequence {
+            DatabaseMigrations.migrateRows(db, DatabaseMigrations.FIRST_VERSION, DatabaseMigrations.LATEST_VERSION,
+                    CHUNK_ROWS).takeIf { it > 0 }
+        }.toList()
+
+        // Each row is encoded, then moved to the snapshots
+        assertThat(chunks).hasSize(2 * LARGE_DB_ROWS / CHUNK_ROWS)
+        assertThat(chunks).allMatch { it <= CHUNK_ROWS }
+        assertThat(SqlUtils.intForQuery(db, "SELECT COUNT(*) FROM tbl_events" +
+                " WHERE user_props IS NULL AND device_info IS NULL AND user_props_id IS NOT NULL", null))
+            .isEqualTo(LARGE_DB_ROWS)
+        assertThat(SqlUtils.intForQuery(db, "SELECT COUNT(*) FROM tbl_snapshots", null)).isEqualTo(2)
+    }
+
+    // The schema of the first version, then the migrations up to the passed version
+    private fun createTablesAtVersion(version: Int) {
+        db.execSQL("CREATE TABLE tbl_events (event_id INTEGER PRIMARY KEY ASC, event_name TEXT NOT NULL," +
+                " user TEXT NOT NULL, user_agent TEXT, timestamp INTEGER, retry_count INTEGER DEFAULT 0," +
+                " user_type INTEGER DEFAULT 0, user_props TEXT, device_info TEXT, custom_props TEXT)")
+        DatabaseMigrations.migrateSchema(db, DatabaseMigrations.FIRST_VERSION, version)
+    }
+
+    private fun insertLegacyEvent(userProps: String? = null, deviceInfo: String? = null) {
+        db.execSQL("INSERT INTO tbl_events (event_name, user, timestamp, user_props, device_info)" +
+                " VALUES ('test_event_name', 'user', 1, ?, ?)", arrayOf<Any?>(userProps, deviceInfo))
+    }
+
+    private fun migrateAllRows(version: Int): Int {
+        var total = 0
+        while (true) {
+            val numRows = DatabaseMigrations.migrateRows(db, DatabaseMigrations.FIRST_VERSION, version, CHUNK_ROWS)
+            if (numRows == 0) {
+                return total
+            }
+            total += numRows
+        }
+    }
+
+    private fun columns(db: SQLiteDatabase, table: String) = db.rawQuery("PRAGMA table_info($table)", null).use {
+        generateSequence { if (it.moveToNext()) it.getString(it.getColumnIndexOrThrow("name")) else null }.toList()
+    }
+
+    private fun indexes(db: SQLiteDatabase) = db.rawQuery("SELECT name FROM sqlite_master WHERE type = 'index'" +
+            " AND name NOT LIKE 'sqlite_autoindex_%'", null).use {
+        generateSequence { if (it.moveToNext()) it.getString(0) else null }.toList()
+    }
+
+    private companion object {
+        const val CHUNK_ROWS = 500
+        const val LARGE_DB_ROWS = 10_000
+    }
+}
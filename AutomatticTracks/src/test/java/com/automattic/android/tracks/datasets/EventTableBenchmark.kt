@@ -0,0 +1,146 @@
+package com.automattic.android.tracks.datasets
+
+import android.content.Context
+import com.automattic.android.tracks.fakes.testEvents
+import com.automattic.android.tracks.reportThroughput
+import org.assertj.core.api.Assertions.assertThat
+import org.json.JSONObject
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.RuntimeEnvironment
+import kotlin.system.measureNanoTime
+
+/**
+ * Throughput of the events store: inserts, reads and deletes, and the size of the stored properties.
+ */
+@RunWith(RobolectricTestRunner::class)
+class EventTableBenchmark {
+
+    private val context: Context = RuntimeEnvironment.getApplication()
+
+    @Before
+    fun setUp() {
+        EventTable.purgeAll(context)
+    }
+
+    @Test
+    fun `insert 500 events one by one vs in a single batch`() {
+        val events = testEvents(EVENTS_COUNT)
+
+        val oneByOneNs = measureNanoTime {
+            events.forEach { EventTable.insertEvent(context, it) }
+        }
+        assertThat(EventTable.getEventsCount(context)).isEqualTo(EVENTS_COUNT)
+        EventTable.purgeAll(context)
+
+        val batchNs = measureNanoTime {
+            EventTable.insertEvents(context, events)
+        }
+        assertThat(EventTable.getEventsCount(context)).isEqualTo(EVENTS_COUNT)
+
+        reportThroughput("insertEvent x $EVENTS_COUNT", EVENTS_COUNT, oneByOneNs)
+        reportThroughput("insertEvents($EVENTS_COUNT)", EVENTS_COUNT, batchNs)
+    }
+
+    @Test
+    fun `encode and decode properties as JSON text vs binary`() {
+        val properties = testEvents(EVENTS_COUNT).map { it.deviceInfo }
+
+        var jsonBytes = 0
+        val jsonNs = measureNanoTime {
+            properties.forEach {
+                val text = it.toString()
+                jsonBytes += text.toByteArray().size
+                JSONObject(text)
+            }
+        }
+        var binaryBytes = 0
+        val binaryNs = measureNanoTime {
+            properties.forEach {
+                val data = PropertiesCodec.encode(it)
+                binaryBytes += data.size
+                PropertiesCodec.decode(data)
+            }
+        }
+
+        reportThroughput("JSON text ($jsonBytes bytes)", EVENTS_COUNT, jsonNs)
+        reportThroughput("PropertiesCodec ($binaryBytes bytes)", EVENTS_COUNT, binaryNs)
+        assertThat(binaryBytes).isLessThan(jsonBytes)
+    }
+
+    @Test
+    fun `size of the user properties and device info of 10k queued events`() {
+        repeat(QUEUED_EVENTS_COUNT / EVENTS_COUNT) { EventTable.insertEvents(context, testEvents(EVENTS_COUNT)) }
+
+        val db = TracksDatabaseHelper.getReadableDb(context)
+        val inlineBytes = SqlUtils.longForQuery(db, "SELECT SUM(length(u.data) + length(d.data)) FROM tbl_events" +
+                " JOIN tbl_snapshots AS u ON u.snapshot_id = user_props_id" +
+                " JOIN tbl_snapshots AS d ON d.snapshot_id = device_info_id", null)
+        val snapshotsBytes = SqlUtils.longForQuery(db, "SELECT SUM(length(data)) FROM tbl_snapshots", null)
+
+        println("$QUEUED_EVENTS_COUNT events: $inlineBytes bytes of properties if stored in each row," +
+                " $snapshotsBytes bytes in snapshots")
+        assertThat(snapshotsBytes * 10).isLessThan(inlineBytes)
+    }
+
+    @Test
+    fun `read and delete 1k and 10k events`() {
+        for (rowsCount in listOf(1_000, 10_000)) {
+            insertEvents(rowsCount)
+            var readEventsCount = 0
+            val getAndDeleteNs = measureNanoTime {
+                readEventsCount = EventTable.getAndDeleteEvents(context, rowsCount).size
+            }
+            assertThat(readEventsCount).isEqualTo(rowsCount)
+            assertThat(EventTable.getEventsCount(context)).isZero
+
+            insertEvents(rowsCount)
+            val leaseAndDeleteNs = measureNanoTime {
+                while (true) {
+                    val batch = EventTable.leaseEventsBatch(context, EVENTS_COUNT, Int.MAX_VALUE)
+                    if (batch.isEmpty) break
+                    EventTable.deleteEventsBatch(context, batch)
+                }
+            }
+            assertThat(EventTable.getEventsCount(context)).isZero
+
+            reportThroughput("getAndDeleteEvents($rowsCount)", rowsCount, getAndDeleteNs)
+            reportThroughput("leaseEventsBatch + deleteEventsBatch, pages of $EVENTS_COUNT", rowsCount, leaseAndDeleteNs)
+        }
+    }
+
+    @Test
+    fun `delete 10k rows by a list of ids vs by a range of ids`() {
+        val db = TracksDatabaseHelper.getWritableDb(context)
+
+        insertEvents(QUEUED_EVENTS_COUNT)
+        val firstId = SqlUtils.longForQuery(db, "SELECT MIN(event_id) FROM tbl_events", null)
+        val ids = firstId until firstId + QUEUED_EVENTS_COUNT
+        val listNs = measureNanoTime {
+            db.delete("tbl_events", "event_id IN (${ids.joinToString(" ,")})", null)
+        }
+        EventTable.purgeAll(context)
+
+        insertEvents(QUEUED_EVENTS_COUNT)
+        val lastId = SqlUtils.longForQuery(db, "SELECT MAX(event_id) FROM tbl_events", null)
+        val rangeNs = measureNanoTime {
+            db.delete("tbl_events", "event_id <= ?1", arrayOf(lastId.toString()))
+        }
+        assertThat(SqlUtils.getRowCount(db, "tbl_events")).isZero
+        EventTable.purgeAll(context)
+
+        reportThroughput("DELETE ... WHERE event_id IN (...)", QUEUED_EVENTS_COUNT, listNs)
+        reportThroughput("DELETE ... WHERE event_id <= last", QUEUED_EVENTS_COUNT, rangeNs)
+    }
+
+    private fun insertEvents(count: Int) {
+        repeat(count / EVENTS_COUNT) { EventTable.insertEvents(context, testEvents(EVENTS_COUNT)) }
+    }
+
+    private companion object {
+        const val EVENTS_COUNT = 500
+        const val QUEUED_EVENTS_COUNT = 10_000
+    }
+}
@@ -0,0 +1,342 @@
+package com.automattic.android.tracks.datasets
+
+import android.content.Context
+import com.automattic.android.tracks.TracksClient.EventPriority
+import com.automattic.android.tracks.fakes.testEvent
+import com.automattic.android.tracks.fakes.testEvents
+import org.assertj.core.api.Assertions.assertThat
+import org.json.JSONObject
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.RuntimeEnvironment
+
+@RunWith(RobolectricTestRunner::class)
+class EventTableTest {
+
+    private val context: Context = RuntimeEnvironment.getApplication()
+
+    @Before
+    fun setUp() {
+        EventTable.purgeAll(context)
+    }
+
+    @Test
+    fun `should insert all the events of a batch`() {
+        val inserted = EventTable.insertEvents(context, testEvents(50))
+
+        assertThat(inserted).isEqualTo(50)
+        assertThat(EventTable.getEventsCount(context)).isEqualTo(50)
+    }
+
+    @Test
+    fun `should read back inserted events in insertion order`() {
+        val events = testEvents(10)
+        EventTable.insertEvents(context, events)
+
+        val readEvents = EventTable.getAndDeleteEvents(context, 0)
+
+        assertThat(readEvents.map { it.eventName }).containsExactlyElementsOf(events.map { it.eventName })
+        assertThat(readEvents.first().customEventProperties.getString("screen")).isEqualTo("reader")
+        assertThat(readEvents.first().deviceInfo.getString("model")).isEqualTo("Pixel")
+        assertThat(readEvents.first().userProperties.getString("plan")).isEqualTo("free")
+        assertThat(EventTable.getEventsCount(context)).isZero
+    }
+
+    @Test
+    fun `should skip null events of a batch`() {
+        val inserted = EventTable.insertEvents(context, listOf(testEvent(), null, testEvent()))
+
+        assertThat(inserted).isEqualTo(2)
+        assertThat(EventTable.getEventsCount(context)).isEqualTo(2)
+    }
+
+    @Test
+    fun `should keep the events count in step with inserts, deletes and purges`() {
+        EventTable.insertEvents(context, testEvents(20))
+        EventTable.insertEvent(context, testEvent())
+        assertThat(EventTable.getEventsCount(context)).isEqualTo(21)
+
+        EventTable.getAndDeleteEvents(context, 5)
+        assertThat(EventTable.getEventsCount(context)).isEqualTo(16)
+
+        EventTable.purgeAll(context)
+        assertThat(EventTable.getEventsCount(context)).isZero
+    }
+
+    @Test
+    fun `should cap a batch by number of events`() {
+        EventTable.insertEvents(context, testEvents(30))
+
+        val batch = EventTable.leaseEventsBatch(context, 10, Int.MAX_VALUE)
+
+        assertThat(batch.events).hasSize(10)
+        assertThat(batch.events.first().eventName).isEqualTo("test_event_0")
+        assertThat(EventTable.getEventsCount(context)).isEqualTo(30)
+    }
+
+    @Test
+    fun `should cap a batch by size of the stored events`() {
+        EventTable.insertEvents(context, testEvents(30))
+        val rowSize = EventTable.leaseEventsBatch(context, 1, Int.MAX_VALUE).sizeInBytes
+
+        val batch = EventTable.leaseEventsBatch(context, 30, rowSize * 5 + rowSize / 2)
+
+        assertThat(batch.events).hasSize(5)
+        assertThat(batch.sizeInBytes).isLessThanOrEqualTo(rowSize * 5 + rowSize / 2)
+    }
+
+    @Test
+    fun `should always return the first event of a batch whatever its size`() {
+        EventTable.insertEvents(context, testEvents(3))
+
+        val batch = EventTable.leaseEventsBatch(context, 10, 1)
+
+        assertThat(batch.events).hasSize(1)
+    }
+
+    @Test
+    fun `should not lease events that are already leased`() {
+        EventTable.insertEvents(context, testEvents(20))
+        val firstBatch = EventTable.leaseEventsBatch(context, 10, Int.MAX_VALUE)
+
+        val secondBatch = EventTable.leaseEventsBatch(context, 10, Int.MAX_VALUE)
+
+        assertThat(secondBatch.batchId).isNotEqualTo(firstBatch.batchId)
+        assertThat(secondBatch.events.map { it.eventName }).containsExactlyElementsOf((10 until 20).map { "test_event_$it" })
+        assertThat(EventTable.leaseEventsBatch(context, 10, Int.MAX_VALUE).isEmpty).isTrue
+    }
+
+    @Test
+    fun `should delete only the rows of an acknowledged batch`() {
+        EventTable.insertEvents(context, testEvents(20))
+        val batch = EventTable.leaseEventsBatch(context, 10, Int.MAX_VALUE)
+
+        EventTable.deleteEventsBatch(context, batch)
+
+        assertThat(EventTable.getEventsCount(context)).isEqualTo(10)
+        assertThat(EventTable.leaseEventsBatch(context, 1, Int.MAX_VALUE).events.first().eventName)
+            .isEqualTo("test_event_10")
+    }
+
+    @Test
+    fun `should make the events of a released batch available again`() {
+        EventTable.insertEvents(context, testEvents(20))
+        val batch = EventTable.leaseEventsBatch(context, 10, Int.MAX_VALUE)
+
+        EventTable.releaseEventsBatch(context, batch)
+
+        val db = TracksDatabaseHelper.getReadableDb(context)
+        assertThat(SqlUtils.intForQuery(db, "SELECT SUM(retry_count) FROM tbl_events", null)).isEqualTo(10)
+        assertThat(EventTable.leaseEventsBatch(context, 20, Int.MAX_VALUE).events).hasSize(20)
+    }
+
+    @Test
+    fun `should delete the events of a released batch once their retry budget is exhausted`() {
+        EventTable.insertEvents(context, testEvents(20))
+        repeat(2) {
+            EventTable.releaseEventsBatch(context, EventTable.leaseEventsBatch(context, 10, Int.MAX_VALUE), 3)
+        }
+
+        val deletedCount = EventTable.releaseEventsBatch(
+                context, EventTable.leaseEventsBatch(context, 10, Int.MAX_VALUE), 3)
+
+        assertThat(deletedCount).isEqualTo(10)
+        assertThat(EventTable.getEventsCount(context)).isEqualTo(10)
+        val batch = EventTable.leaseEventsBatch(context, 20, Int.MAX_VALUE)
+        assertThat(batch.events).hasSize(10)
+        assertThat(batch.events).allMatch { it.retryCount == 0 }
+    }
+
+    @Test
+    fun `should evict the oldest events that are not being sent`() {
+        EventTable.insertEvents(context, testEvents(20))
+        val batch = EventTable.leaseEventsBatch(context, 5, Int.MAX_VALUE)
+
+        val evictedCount = EventTable.evictOldestEvents(context, 10, EventPriority.HIGH)
+
+        assertThat(evictedCount).isEqualTo(10)
+        assertThat(EventTable.getEventsCount(context)).isEqualTo(10)
+        EventTable.deleteEventsBatch(context, batch)
+        assertThat(EventTable.leaseEventsBatch(context, 20, Int.MAX_VALUE).events.map { it.eventName })
+            .containsExactlyElementsOf((15 until 20).map { "test_event_$it" })
+    }
+
+    @Test
+    fun `should delete the expired events that are not being sent`() {
+        val now = System.currentTimeMillis()
+        EventTable.insertEvents(context, listOf(
+                testEvent(name = "test_too_old", timestamp = now - 2 * MAX_AGE_MS),
+                testEvent(name = "test_recent_event", timestamp = now - MAX_AGE_MS / 2),
+                testEvent(name = "test_future_event", timestamp = now + 2 * MAX_AGE_MS),
+                testEvent(name = "test_too_old_leased", timestamp = now - 2 * MAX_AGE_MS)
+        ))
+        val db = TracksDatabaseHelper.getWritableDb(context)
+        db.execSQL("UPDATE tbl_events SET batch_id = 1 WHERE event_name = 'test_too_old_leased'")
+
+        val deletedCount = EventTable.deleteExpiredEvents(context, MAX_AGE_MS, 3)
+
+        assertThat(deletedCount).isEqualTo(2)
+        assertThat(EventTable.getEventsCount(context)).isEqualTo(2)
+        assertThat(SqlUtils.intForQuery(db, "SELECT COUNT(*) FROM tbl_snapshots", null)).isEqualTo(2)
+    }
+
+    @Test
+    fun `should delete the events that already exhausted their retry budget`() {
+        EventTable.insertEvents(context, testEvents(10))
+        TracksDatabaseHelper.getWritableDb(context).execSQL(
+                "UPDATE tbl_events SET retry_count = 3 WHERE event_name = 'test_event_0'")
+
+        val deletedCount = EventTable.deleteExpiredEvents(context, MAX_AGE_MS, 3)
+
+        assertThat(deletedCount).isEqualTo(1)
+        assertThat(EventTable.getEventsCount(context)).isEqualTo(9)
+    }
+
+    @Test
+    fun `should read back the properties of the inserted events`() {
+        EventTable.insertEvent(context, testEvent(customProps = mapOf("screen" to "reader")))
+
+        val event = EventTable.leaseEventsBatch(context, 1, Int.MAX_VALUE).events.single()
+
+        assertThat(event.deviceInfo.getString("model")).isEqualTo("Pixel")
+        assertThat(event.deviceInfo.getBoolean("is_online")).isTrue
+        assertThat(event.userProperties.getString("plan")).isEqualTo("free")
+        assertThat(event.customEventProperties.getString("screen")).isEqualTo("reader")
+    }
+
+    @Test
+    fun `should store the same user properties and device info only once`() {
+        EventTable.insertEvents(context, testEvents(50))
+        EventTable.insertEvents(context, testEvents(50))
+
+        assertThat(snapshotsCount()).isEqualTo(2)
+    }
+
+    @Test
+    fun `should delete the snapshots no longer used by any event`() {
+        EventTable.insertEvents(context, testEvents(5))
+        val otherEvents = testEvents(5).onEach { it.userProperties = JSONObject().put("plan", "premium") }
+        EventTable.insertEvents(context, otherEvents)
+        assertThat(snapshotsCount()).isEqualTo(3)
+
+        EventTable.deleteEventsBatch(context, EventTable.leaseEventsBatch(context, 5, Int.MAX_VALUE))
+        assertThat(snapshotsCount()).isEqualTo(2)
+
+        EventTable.deleteEventsBatch(context, EventTable.leaseEventsBatch(context, 5, Int.MAX_VALUE))
+        assertThat(snapshotsCount()).isZero
+    }
+
+    @Test
+    fun `should lease the events of each client in their own batches`() {
+        val events = testEvents(10).onEachIndexed { index, event -> event.clientTag = 1 + index % 2 }
+        EventTable.insertEvents(context, events)
+
+        val firstBatch = EventTable.leaseEventsBatch(context, 10, Int.MAX_VALUE)
+        val secondBatch = EventTable.leaseEventsBatch(context, 10, Int.MAX_VALUE)
+
+        assertThat(firstBatch.events.map { it.eventName }).containsExactlyElementsOf((0 until 10 step 2).map { "test_event_$it" })
+        assertThat(firstBatch.events).allMatch { it.clientTag == 1 }
+        assertThat(secondBatch.events.map { it.eventName }).containsExactlyElementsOf((1 until 10 step 2).map { "test_event_$it" })
+        assertThat(secondBatch.events).allMatch { it.clientTag == 2 }
+        assertThat(EventTable.leaseEventsBatch(context, 10, Int.MAX_VALUE).isEmpty).isTrue
+    }
+
+    @Test
+    fun `should lease the events of the highest priority first`() {
+        val priorities = listOf(EventPriority.LOW, EventPriority.NORMAL, EventPriority.HIGH)
+        val events = testEvents(9).onEachIndexed { index, event -> event.priority = priorities[index % 3] }
+        EventTable.insertEvents(context, events)
+
+        val batches = (0 until 3).map { EventTable.leaseEventsBatch(context, 10, Int.MAX_VALUE) }
+
+        assertThat(batches.map { batch -> batch.events.map { it.priority }.distinct() })
+            .containsExactly(listOf(EventPriority.HIGH), listOf(EventPriority.NORMAL), listOf(EventPriority.LOW))
+        assertThat(batches[0].events.map { it.eventName }).containsExactly("test_event_2", "test_event_5", "test_event_8")
+        assertThat(EventTable.leaseEventsBatch(context, 10, Int.MAX_VALUE).isEmpty).isTrue
+    }
+
+    @Test
+    fun `should store the events tracked with a null priority in the normal lane`() {
+        val events = testEvents(3).onEachIndexed { index, event -> if (index == 1) event.priority = null }
+
+        assertThat(EventTable.insertEvents(context, events)).isEqualTo(3)
+
+        val batch = EventTable.leaseEventsBatch(context, 10, Int.MAX_VALUE)
+        assertThat(batch.events).hasSize(3)
+        assertThat(batch.events).allMatch { it.priority == EventPriority.NORMAL }
+    }
+
+    @Test
+    fun `should evict the oldest events of the lowest priority first`() {
+        val priorities = listOf(EventPriority.HIGH, EventPriority.NORMAL, EventPriority.LOW)
+        val events = testEvents(9).onEachIndexed { index, event -> event.priority = priorities[index % 3] }
+        EventTable.insertEvents(context, events)
+
+        assertThat(EventTable.evictOldestEvents(context, 4, EventPriority.HIGH)).isEqualTo(4)
+
+        val remaining = EventTable.leaseEventsBatch(context, 10, Int.MAX_VALUE).events +
+                EventTable.leaseEventsBatch(context, 10, Int.MAX_VALUE).events
+        assertThat(remaining.map { it.eventName })
+            .containsExactly("test_event_0", "test_event_3", "test_event_6", "test_event_4", "test_event_7")
+    }
+
+    @Test
+    fun `should not evict the events above the given priority`() {
+        val priorities = listOf(EventPriority.HIGH, EventPriority.NORMAL, EventPriority.LOW)
+        val events = testEvents(9).onEachIndexed { index, event -> event.priority = priorities[index % 3] }
+        EventTable.insertEvents(context, events)
+
+        assertThat(EventTable.evictOldestEvents(context, 9, EventPriority.NORMAL)).isEqualTo(6)
+
+        assertThat(EventTable.leaseEventsBatch(context, 10, Int.MAX_VALUE).events.map { it.eventName })
+            .containsExactly("test_event_0", "test_event_3", "test_event_6")
+    }
+
+    @Test
+    fun `should look up the expired events with the expiry indexes`() {
+        val plan = queryPlan("SELECT event_id FROM tbl_events WHERE " + EventTable.EXPIRED_EVENTS_SELECTION, "1", "2", "3")
+
+        assertThat(plan).contains("idx_events_timestamp", "idx_events_retry_count")
+        assertThat(plan).doesNotContain("SCAN")
+    }
+
+    @Test
+    fun `should look up the orphan snapshots with the snapshot id indexes`() {
+        val plan = queryPlan("SELECT snapshot_id FROM tbl_snapshots WHERE " + SnapshotTable.ORPHANS_SELECTION)
+
+        assertThat(plan).contains("idx_events_user_props_id", "idx_events_device_info_id")
+        assertThat(plan).doesNotContain("SCAN tbl_events")
+    }
+
+    @Test
+    fun `should read the evicted events in the priority index`() {
+        val plan = queryPlan(EventTable.SELECT_EVICTED_EVENT_IDS, "1", "10")
+
+        assertThat(plan).contains("idx_events_priority")
+        assertThat(plan).doesNotContain("SCAN", "TEMP B-TREE")
+    }
+
+    @Test
+    fun `should look up the lane of a batch in the priority index`() {
+        val plan = queryPlan(EventTable.SELECT_LANE_CLIENT_TAG, "2", "0")
+
+        assertThat(plan).contains("idx_events_priority")
+        assertThat(plan).doesNotContain("SCAN", "TEMP B-TREE")
+    }
+
+    private fun queryPlan(sql: String, vararg args: String): String {
+        val cursor = TracksDatabaseHelper.getReadableDb(context).rawQuery("EXPLAIN QUERY PLAN $sql", args)
+        val plan = StringBuilder()
+        cursor.use { while (it.moveToNext()) plan.append(it.getString(it.getColumnIndexOrThrow("detail"))).append('\n') }
+        return plan.toString()
+    }
+
+    private fun snapshotsCount() =
+            SqlUtils.intForQuery(TracksDatabaseHelper.getReadableDb(context), "SELECT COUNT(*) FROM tbl_snapshots", null)
+
+    private companion object {
+        const val MAX_AGE_MS = 24 * 60 * 60 * 1000L
+    }
+}
@@ -0,0 +1,77 @@
+package com.automattic.android.tracks.datasets
+
+import org.assertj.core.api.Assertions.assertThat
+import org.assertj.core.api.Assertions.assertThatThrownBy
+import org.json.JSONArray
+import org.json.JSONException
+import org.json.JSONObject
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+
+@RunWith(RobolectricTestRunner::class)
+class PropertiesCodecTest {
+
+    @Test
+    fun `should decode the same values as the JSON text`() {
+        val properties = JSONObject()
+                .put("string", "quote \" slash / unicode é 😀")
+                .put("empty", "")
+                .put("int", 42)
+                .put("negative", -7)
+                .put("long", 1_600_000_000_000L)
+                .put("min_long", Long.MIN_VALUE)
+                .put("double", 1.5)
+                .put("integral_double", 2.0)
+                .put("true", true)
+                .put("false", false)
+                .put("null", JSONObject.NULL)
+                .put("object", JSONObject().put("a", 1))
+                .put("array", JSONArray().put("x").put(2))
+
+        val decoded = PropertiesCodec.decode(PropertiesCodec.encode(properties))
+
+        val parsedFromText = JSONObject(properties.toString())
+        assertThat(decoded.length()).isEqualTo(parsedFromText.length())
+        parsedFromText.keys().forEach { key ->
+            // What matters is the string value written in the requests
+            assertThat(decoded.get(key).toString()).`as`(key).isEqualTo(parsedFromText.get(key).toString())
+            assertThat(decoded.get(key)).`as`(key).isExactlyInstanceOf(parsedFromText.get(key).javaClass)
+        }
+    }
+
+    @Test
+    fun `should decode an empty object`() {
+        assertThat(PropertiesCodec.decode(PropertiesCodec.encode(JSONObject())).length()).isZero
+    }
+
+    @Test
+    fun `should be smaller than the JSON text`() {
+        val deviceInfo = JSONObject()
+                .put("os", "Android")
+                .put("os_version", "14")
+                .put("app_version", "24.1")
+                .put("app_version_code", 1456)
+                .put("bluetooth_enabled", false)
+                .put("wifi_connected", true)
+                .put("display_density_dpi", 420)
+
+        assertThat(PropertiesCodec.encode(deviceInfo).size).isLessThan(deviceInfo.toString().toByteArray().size)
+    }
+
+    @Test
+    fun `should reject data with an unknown version`() {
+        val data = PropertiesCodec.encode(JSONObject().put("a", "b"))
+        data[0] = (PropertiesCodec.VERSION + 1).toByte()
+
+        assertThatThrownBy { PropertiesCodec.decode(data) }.isInstanceOf(JSONException::class.java)
+    }
+
+    @Test
+    fun `should reject truncated data`() {
+        val data = PropertiesCodec.encode(JSONObject().put("key", "value"))
+
+        assertThatThrownBy { PropertiesCodec.decode(data.copyOf(data.size - 2)) }
+                .isInstanceOf(JSONException::class.java)
+    }
+}
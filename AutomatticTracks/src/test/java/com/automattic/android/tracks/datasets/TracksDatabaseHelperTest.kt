@@ -0,0 +1,96 @@
+package com.automattic.android.tracks.datasets
+
+import android.content.Context
+import com.automattic.android.tracks.fakes.testEvents
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.RuntimeEnvironment
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import kotlin.concurrent.thread
+
+@RunWith(RobolectricTestRunner::class)
+class TracksDatabaseHelperTest {
+
+    private val context: Context = RuntimeEnvironment.getApplication()
+
+    @Test
+    fun `should open the database with a write-ahead log`() {
+        val db = TracksDatabaseHelper.getWritableDb(context)
+
+        assertThat(db.isWriteAheadLoggingEnabled).isTrue
+        assertThat(SqlUtils.stringForQuery(db, "PRAGMA journal_mode", null)).isEqualToIgnoringCase("wal")
+    }
+
+    @Test
+    fun `should not check the rows once they are all migrated`() {
+        val db = TracksDatabaseHelper.getWritableDb(context)
+        EventTable.purgeAll(context)
+        assertThat(MetadataTable.getRowsVersion(db)).isEqualTo(DatabaseMigrations.LATEST_VERSION)
+
+        // As after an upgrade from a version whose rows were stored as JSON text
+        MetadataTable.setRowsVersion(db, DatabaseMigrations.FIRST_VERSION)
+        db.execSQL("INSERT INTO tbl_events (event_name, user, timestamp, user_props) VALUES ('test_event_name', 'user', 1, ?)",
+                arrayOf("""{"plan":"free"}"""))
+
+        // Encoded, then moved to the snapshots
+        assertThat(TracksDatabaseHelper.migrateRows(context, 500)).isEqualTo(1)
+        assertThat(TracksDatabaseHelper.migrateRows(context, 500)).isEqualTo(1)
+        assertThat(TracksDatabaseHelper.migrateRows(context, 500)).isZero
+        assertThat(MetadataTable.getRowsVersion(db)).isEqualTo(DatabaseMigrations.LATEST_VERSION)
+
+        // Rows left in an old format now would not be looked for anymore
+        db.execSQL("INSERT INTO tbl_events (event_name, user, timestamp, user_props) VALUES ('test_event_name', 'user', 1, ?)",
+                arrayOf("""{"plan":"free"}"""))
+        assertThat(TracksDatabaseHelper.migrateRows(context, 500)).isZero
+        EventTable.purgeAll(context)
+    }
+
+    @Test
+    fun `should relax the syncs of the writer connection`() {
+        val db = TracksDatabaseHelper.getWritableDb(context)
+
+        // Statements of a transaction run on the writer connection
+        db.beginTransaction()
+        try {
+            assertThat(SqlUtils.intForQuery(db, "PRAGMA synchronous", null)).isEqualTo(SYNCHRONOUS_NORMAL)
+        } finally {
+            db.endTransaction()
+        }
+    }
+
+    @Test
+    fun `should read while the writer holds a transaction`() {
+        EventTable.purgeAll(context)
+        EventTable.insertEvents(context, testEvents(10))
+        val db = TracksDatabaseHelper.getWritableDb(context)
+        val isInTransaction = CountDownLatch(1)
+        val isReadDone = CountDownLatch(1)
+
+        val writer = thread {
+            db.beginTransaction()
+            try {
+                db.execSQL("DELETE FROM tbl_events")
+                isInTransaction.countDown()
+                isReadDone.await(5, TimeUnit.SECONDS)
+            } finally {
+                db.endTransaction()
+            }
+        }
+        isInTransaction.await(5, TimeUnit.SECONDS)
+
+        // The reader sees the last committed state, without waiting for the transaction to end
+        val count = SqlUtils.intForQuery(TracksDatabaseHelper.getReadableDb(context),
+                "SELECT COUNT(*) FROM tbl_events", null)
+        isReadDone.countDown()
+        writer.join()
+
+        assertThat(count).isEqualTo(10)
+    }
+
+    private companion object {
+        const val SYNCHRONOUS_NORMAL = 1
+    }
+}
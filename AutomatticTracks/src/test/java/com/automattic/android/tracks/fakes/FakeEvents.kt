@@ -0,0 +1,17 @@
+package com.automattic.android.tracks.fakes
+
+import com.automattic.android.tracks.Event
+import com.automattic.android.tracks.TracksClient.NosaraUserType
+import org.json.JSONObject
+
+fun testEvent(
+    name: String = "test_event_name",
+    timestamp: Long = System.currentTimeMillis(),
+    customProps: Map<String, String> = mapOf("screen" to "reader", "source" to "push")
+) = Event(name, "test user", NosaraUserType.ANON, "test user agent", timestamp).apply {
+    setDeviceInfo(JSONObject(mapOf("os" to "Android", "model" to "Pixel", "is_online" to true)))
+    setUserProperties(JSONObject(mapOf("plan" to "free")))
+    customProps.forEach { (key, value) -> addCustomEventProperty(key, value) }
+}
+
+fun testEvents(count: Int) = (0 until count).map { testEvent(name = "test_event_$it") }